@@ -0,0 +1,91 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Daily usage of a few apps over several months, and the sums tests expect from it.
+ * Usage varies by day and app, and some days have no row, so sums catch wrong boundaries.
+ */
+class AppUsageFixture {
+    static final String[] PACKAGES = {"com.example.mail", "com.example.maps", "com.example.music"};
+
+    // 2015/1/20, a Tuesday, so the data starts in the middle of a week and of a month.
+    final long FirstDate = 16455;
+    // 150 days later, the middle of June.
+    final long LastDate = FirstDate + 149;
+
+    final ArrayList<AppUsageEntry> Entries = new ArrayList<AppUsageEntry>();
+
+    AppUsageFixture() {
+        for (long day = FirstDate; day <= LastDate; day++) {
+            for (int i = 0; i < PACKAGES.length; i++) {
+                if ((day + i) % 5 == 0)
+                    continue;
+                Entries.add(new AppUsageEntry(PACKAGES[i], "App " + i, getUsage(day, i), day));
+            }
+        }
+    }
+
+    private static int getUsage(long day, int packageIndex) {
+        return (int) ((day * 7 + packageIndex * 13) % 50) * 60 + 1;
+    }
+
+    /**
+     * Write every entry, with one batch, as the tracker would.
+     */
+    void write(TrackDatabase database) {
+        if (!database.writeAppUsageBatch(Entries, Collections.<AppSession>emptyList()).Success)
+            throw new IllegalStateException("Could not write the fixture");
+    }
+
+    /**
+     * @return The usage of each app from startDate to endDate, both included.
+     */
+    Map<String, Integer> getTotals(long startDate, long endDate) {
+        HashMap<String, Integer> totals = new HashMap<String, Integer>();
+        for (AppUsageEntry entry : Entries) {
+            if (entry.DaysSinceEpoch < startDate || entry.DaysSinceEpoch > endDate)
+                continue;
+            Integer total = totals.get(entry.PackageName);
+            totals.put(entry.PackageName, (total == null ? 0 : total) + entry.UsageTimeSec);
+        }
+        return totals;
+    }
+
+    /**
+     * @return The usage of each app in each period, keyed by "start date/package".
+     */
+    Map<String, Integer> getPeriodTotals(boolean monthly) {
+        HashMap<String, Integer> totals = new HashMap<String, Integer>();
+        for (AppUsageEntry entry : Entries) {
+            long start = monthly ? TrackDateUtil.getMonthStart(entry.DaysSinceEpoch)
+                    : TrackDateUtil.getWeekStart(entry.DaysSinceEpoch);
+            String key = start + "/" + entry.PackageName;
+            Integer total = totals.get(key);
+            totals.put(key, (total == null ? 0 : total) + entry.UsageTimeSec);
+        }
+        return totals;
+    }
+
+    /**
+     * @return The package names, most used first, as readAppUsageTotals() sorts them.
+     */
+    static List<String> sortByUsage(final Map<String, Integer> totals) {
+        ArrayList<String> packages = new ArrayList<String>(totals.keySet());
+        Collections.sort(packages, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int diff = totals.get(b) - totals.get(a);
+                return (diff != 0) ? diff : a.compareTo(b);
+            }
+        });
+        return packages;
+    }
+}
@@ -0,0 +1,158 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Checks that readAppUsageTotals() sums the same usage as AppUsage, whichever mix of days, weeks
+ * and months buildAppUsageTotalsQuery() splits the range into.
+ */
+public class AppUsageTotalsTest extends AndroidTestCase {
+
+    private TrackDatabase mDatabase;
+    private AppUsageFixture mFixture;
+    // First day of the first whole month of the fixture, 2015/2/1.
+    private long mMonthStart;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = new TrackDatabase(getContext(), null);
+        mFixture = new AppUsageFixture();
+        mFixture.write(mDatabase);
+        mMonthStart = TrackDateUtil.getNextMonthStart(mFixture.FirstDate);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testTotalsOfDays() {
+        // Wednesday to Friday.
+        long start = TrackDateUtil.getWeekStart(mMonthStart + 14) + 2;
+        assertTotals(start, start + 2);
+    }
+
+    public void testTotalsOfWeeks() {
+        long start = TrackDateUtil.getWeekStart(mMonthStart + 7);
+        assertTotals(start, start + 13);
+    }
+
+    public void testTotalsOfMonths() {
+        long end = TrackDateUtil.getNextMonthStart(TrackDateUtil.getNextMonthStart(mMonthStart)) - 1;
+        assertTotals(mMonthStart, end);
+    }
+
+    public void testTotalsOfMixedRange() {
+        // Days and a week before the first whole month, months, then a week and days.
+        assertTotals(mFixture.FirstDate + 1, mFixture.LastDate - 1);
+        assertTotals(mMonthStart - 9, TrackDateUtil.getNextMonthStart(mMonthStart) + 10);
+    }
+
+    public void testTotalsOfOpenRange() {
+        ArrayList<AppUsageEntry> totals = mDatabase.readAppUsageTotals(-1, -1, -1);
+        assertTotals(mFixture.getTotals(mFixture.FirstDate, mFixture.LastDate), mFixture.LastDate, totals);
+    }
+
+    public void testLimitKeepsMostUsed() {
+        ArrayList<AppUsageEntry> totals = mDatabase.readAppUsageTotals(mFixture.FirstDate, mFixture.LastDate, 2);
+        List<String> expected = AppUsageFixture.sortByUsage(mFixture.getTotals(mFixture.FirstDate, mFixture.LastDate));
+        assertEquals(2, totals.size());
+        assertEquals(expected.get(0), totals.get(0).PackageName);
+        assertEquals(expected.get(1), totals.get(1).PackageName);
+    }
+
+    public void testEmptyRange() {
+        assertTrue(mDatabase.readAppUsageTotals(mFixture.LastDate + 1, mFixture.LastDate + 30, -1).isEmpty());
+        assertTrue(mDatabase.readAppUsageTotals(mFixture.LastDate, mFixture.FirstDate, -1).isEmpty());
+    }
+
+    public void testTotalsOfPackages() {
+        long start = mMonthStart - 3;
+        long end = mFixture.LastDate;
+        Map<String, Integer> expected = mFixture.getTotals(start, end);
+
+        // Three names are padded to four, one of them without usage.
+        List<String> packages = Arrays.asList(AppUsageFixture.PACKAGES[2], AppUsageFixture.PACKAGES[0],
+                "com.example.unused");
+        ArrayList<AppUsageEntry> totals = mDatabase.readAppUsageTotals(start, end, packages);
+        expected.remove(AppUsageFixture.PACKAGES[1]);
+        assertTotals(expected, end, totals);
+    }
+
+    public void testTotalsOfManyPackages() {
+        long start = mFixture.FirstDate;
+        long end = mFixture.LastDate;
+
+        // More names than fit in one query, with used apps in the first and the last chunk.
+        ArrayList<String> packages = new ArrayList<String>();
+        packages.add(AppUsageFixture.PACKAGES[0]);
+        for (int i = 0; i < 300; i++) {
+            packages.add("com.example.unused" + i);
+        }
+        packages.add(AppUsageFixture.PACKAGES[1]);
+        packages.add(AppUsageFixture.PACKAGES[2]);
+
+        HashMap<String, Integer> read = new HashMap<String, Integer>();
+        for (AppUsageEntry entry : mDatabase.readAppUsageTotals(start, end, packages)) {
+            assertNull(read.put(entry.PackageName, entry.UsageTimeSec));
+        }
+        assertEquals(mFixture.getTotals(start, end), read);
+    }
+
+    public void testQueryTakesArgsItAdds() {
+        long[][] ranges = {
+                {mMonthStart + 1, mMonthStart + 3},
+                {mMonthStart, TrackDateUtil.getNextMonthStart(mMonthStart) - 1},
+                {mFixture.FirstDate, mFixture.LastDate},
+        };
+        for (long[] range : ranges) {
+            ArrayList<Object> args = new ArrayList<Object>();
+            PreparedQuery query = mDatabase.buildAppUsageTotalsQuery(range[0], range[1], 0, args);
+            // The limit is added by the caller.
+            assertEquals(query.getArgCount(), args.size() + 1);
+            assertEquals(range[1], args.get(0));
+
+            args.clear();
+            query = mDatabase.buildAppUsageTotalsQuery(range[0], range[1], 4, args);
+            assertEquals(query.getArgCount(), args.size() + 4);
+        }
+    }
+
+    public void testRangesOfSameShapeShareQuery() {
+        // The same days of two weeks, so only the dates differ.
+        long start = TrackDateUtil.getWeekStart(mMonthStart + 7) + 1;
+        PreparedQuery first = mDatabase.buildAppUsageTotalsQuery(start, start + 2, 0, new ArrayList<Object>());
+        PreparedQuery second = mDatabase.buildAppUsageTotalsQuery(start + 7, start + 9, 0, new ArrayList<Object>());
+        assertEquals(first.getSql(), second.getSql());
+    }
+
+    private void assertTotals(long startDate, long endDate) {
+        ArrayList<AppUsageEntry> totals = mDatabase.readAppUsageTotals(startDate, endDate, -1);
+        assertTotals(mFixture.getTotals(startDate, endDate), endDate, totals);
+    }
+
+    /**
+     * Assert that totals has one entry per app of expected, in the order of sortByUsage().
+     */
+    private static void assertTotals(Map<String, Integer> expected, long endDate, List<AppUsageEntry> totals) {
+        List<String> order = AppUsageFixture.sortByUsage(expected);
+        assertEquals(order.size(), totals.size());
+        for (int i = 0; i < order.size(); i++) {
+            AppUsageEntry entry = totals.get(i);
+            assertEquals(order.get(i), entry.PackageName);
+            assertEquals(expected.get(entry.PackageName).intValue(), entry.UsageTimeSec);
+            assertEquals(endDate, entry.DaysSinceEpoch);
+            assertNotNull(entry.AppName);
+        }
+    }
+}
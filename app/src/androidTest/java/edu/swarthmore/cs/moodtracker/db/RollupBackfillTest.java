@@ -0,0 +1,149 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageMonthlySchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageSchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageWeeklySchema;
+
+/**
+ * Checks that RollupBackfill fills the rollup tables with the sums of AppUsage, and that
+ * writeAppUsageBatch() keeps them equal afterwards.
+ */
+public class RollupBackfillTest extends AndroidTestCase {
+
+    // More chunks than any backfill of the fixture takes.
+    private static final int MAX_CHUNKS = 100;
+
+    private TrackDatabase mDatabase;
+    private AppUsageFixture mFixture;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = new TrackDatabase(getContext(), null);
+        mFixture = new AppUsageFixture();
+        mFixture.write(mDatabase);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testWeeklyBackfillSumsAppUsage() {
+        clearRollups();
+        runToEnd(RollupBackfill.weekly());
+        assertEquals(mFixture.getPeriodTotals(false), readRollup(AppUsageWeeklySchema.TABLE_NAME));
+    }
+
+    public void testMonthlyBackfillSumsAppUsage() {
+        clearRollups();
+        runToEnd(RollupBackfill.monthly());
+        assertEquals(mFixture.getPeriodTotals(true), readRollup(AppUsageMonthlySchema.TABLE_NAME));
+    }
+
+    public void testBackfillReplacesRowsWrittenBefore() {
+        // Rows the app added while the backfill was pending, some of them partial.
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.execSQL("UPDATE " + AppUsageWeeklySchema.TABLE_NAME + " SET "
+                + AppUsageWeeklySchema.COLUMN_USAGE_SEC + " = 1");
+        db.execSQL("UPDATE " + AppUsageMonthlySchema.TABLE_NAME + " SET "
+                + AppUsageMonthlySchema.COLUMN_USAGE_SEC + " = 1");
+
+        runToEnd(RollupBackfill.weekly());
+        runToEnd(RollupBackfill.monthly());
+        assertEquals(mFixture.getPeriodTotals(false), readRollup(AppUsageWeeklySchema.TABLE_NAME));
+        assertEquals(mFixture.getPeriodTotals(true), readRollup(AppUsageMonthlySchema.TABLE_NAME));
+    }
+
+    public void testChunkIsIdempotent() {
+        clearRollups();
+        RollupBackfill backfill = RollupBackfill.weekly();
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        long start = backfill.getStartPosition(db);
+        long next = backfill.runChunk(db, start);
+        Map<String, Integer> once = readRollup(AppUsageWeeklySchema.TABLE_NAME);
+
+        // The process died before the position was saved, so the chunk runs again.
+        assertEquals(next, backfill.runChunk(db, start));
+        assertEquals(once, readRollup(AppUsageWeeklySchema.TABLE_NAME));
+        assertFalse(once.isEmpty());
+    }
+
+    public void testStartsAtPeriodOfFirstDay() {
+        SQLiteDatabase db = mDatabase.getReadableDatabase();
+        // The fixture starts on a Tuesday, 2015/1/20.
+        assertEquals(mFixture.FirstDate - 1, RollupBackfill.weekly().getStartPosition(db));
+        assertEquals(mFixture.FirstDate - 19, RollupBackfill.monthly().getStartPosition(db));
+    }
+
+    public void testEmptyTableIsDone() {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.execSQL("DELETE FROM " + AppUsageSchema.TABLE_NAME);
+        assertEquals(Backfill.DONE, RollupBackfill.weekly().getStartPosition(db));
+        assertEquals(Backfill.DONE, RollupBackfill.monthly().getStartPosition(db));
+    }
+
+    public void testBatchWritesKeepRollupsEqual() {
+        // Overwrite some days with less usage, and add a day after the last one.
+        for (int i = 0; i < mFixture.Entries.size(); i += 7) {
+            mFixture.Entries.get(i).UsageTimeSec /= 2;
+        }
+        mFixture.Entries.add(new AppUsageEntry(AppUsageFixture.PACKAGES[0], "App 0", 600, mFixture.LastDate + 1));
+        mFixture.write(mDatabase);
+
+        assertEquals(mFixture.getPeriodTotals(false), readRollup(AppUsageWeeklySchema.TABLE_NAME));
+        assertEquals(mFixture.getPeriodTotals(true), readRollup(AppUsageMonthlySchema.TABLE_NAME));
+    }
+
+    private void clearRollups() {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.execSQL("DELETE FROM " + AppUsageWeeklySchema.TABLE_NAME);
+        db.execSQL("DELETE FROM " + AppUsageMonthlySchema.TABLE_NAME);
+    }
+
+    /**
+     * Run every chunk of a backfill, as Migrator does, checking that progress only grows.
+     */
+    private void runToEnd(Backfill backfill) {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        long position = backfill.getStartPosition(db);
+        float progress = 0;
+        int chunks = 0;
+        while (position != Backfill.DONE) {
+            assertTrue("Too many chunks", ++chunks <= MAX_CHUNKS);
+            float chunkProgress = backfill.getProgress(db, position);
+            assertTrue(chunkProgress >= progress);
+            progress = chunkProgress;
+            position = backfill.runChunk(db, position);
+        }
+        assertTrue(chunks > 1);
+        assertEquals(1f, backfill.getProgress(db, position), 0f);
+    }
+
+    /**
+     * @return The rows of a rollup table, keyed like AppUsageFixture.getPeriodTotals().
+     */
+    private Map<String, Integer> readRollup(String table) {
+        HashMap<String, Integer> rows = new HashMap<String, Integer>();
+        Cursor cursor = mDatabase.getReadableDatabase().rawQuery("SELECT "
+                + AppUsageWeeklySchema.COLUMN_START_DATE + ", " + AppUsageWeeklySchema.COLUMN_PACKAGE + ", "
+                + AppUsageWeeklySchema.COLUMN_USAGE_SEC + " FROM " + table, null);
+        try {
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getLong(0) + "/" + cursor.getString(1), cursor.getInt(2));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
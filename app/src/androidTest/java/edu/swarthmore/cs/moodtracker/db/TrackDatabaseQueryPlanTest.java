@@ -0,0 +1,148 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageMonthlySchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageSchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageWeeklySchema;
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that date range reads search an index of the usage tables,
+ * and never scan them.
+ */
+public class TrackDatabaseQueryPlanTest extends AndroidTestCase {
+
+    private TrackDatabase mDatabase;
+    // First day of a month, in days since epoch.
+    private long mMonthStart;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = new TrackDatabase(getContext(), null);
+        mMonthStart = TrackDateUtil.getMonthStart(TrackDateUtil.getDaysSinceEpoch());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testAppUsageQuerySearchesDateIndex() {
+        List<String> plan = explain(TrackDatabase.APP_USAGE_QUERY, mMonthStart, mMonthStart + 6);
+        assertSearchesIndex(plan, AppUsageSchema.TABLE_NAME, AppUsageSchema.INDEX_DATE);
+        assertNoUsageScan(plan);
+    }
+
+    public void testTotalsQueryOfDaysSearchesDateIndex() {
+        // Tuesday to Thursday, no whole week.
+        long start = TrackDateUtil.getWeekStart(mMonthStart + 14) + 1;
+        PlannedQuery totals = buildTotalsQuery(start, start + 2);
+        assertTrue(totals.Sql.contains("FROM " + AppUsageSchema.TABLE_NAME + " WHERE"));
+        assertFalse(totals.Sql.contains(AppUsageWeeklySchema.TABLE_NAME));
+        assertFalse(totals.Sql.contains(AppUsageMonthlySchema.TABLE_NAME));
+
+        assertSearchesIndex(totals.Plan, AppUsageSchema.TABLE_NAME, AppUsageSchema.INDEX_DATE);
+        assertNoUsageScan(totals.Plan);
+    }
+
+    public void testTotalsQueryOfWeekSearchesWeeklyKey() {
+        // A whole week in the middle of the month.
+        long start = TrackDateUtil.getWeekStart(mMonthStart + 14);
+        PlannedQuery totals = buildTotalsQuery(start, start + 6);
+        assertTrue(totals.Sql.contains(AppUsageWeeklySchema.TABLE_NAME));
+        assertFalse(totals.Sql.contains("FROM " + AppUsageSchema.TABLE_NAME + " WHERE"));
+        assertFalse(totals.Sql.contains(AppUsageMonthlySchema.TABLE_NAME));
+
+        assertSearchesIndex(totals.Plan, AppUsageWeeklySchema.TABLE_NAME, null);
+        assertNoUsageScan(totals.Plan);
+    }
+
+    public void testTotalsQueryOfMonthSearchesMonthlyKey() {
+        PlannedQuery totals = buildTotalsQuery(mMonthStart, TrackDateUtil.getNextMonthStart(mMonthStart) - 1);
+        assertTrue(totals.Sql.contains(AppUsageMonthlySchema.TABLE_NAME));
+        assertFalse(totals.Sql.contains("FROM " + AppUsageSchema.TABLE_NAME + " WHERE"));
+        assertFalse(totals.Sql.contains(AppUsageWeeklySchema.TABLE_NAME));
+
+        assertSearchesIndex(totals.Plan, AppUsageMonthlySchema.TABLE_NAME, null);
+        assertNoUsageScan(totals.Plan);
+    }
+
+    public void testTotalsQueryOfMixedRangeSearchesEveryTable() {
+        // The last days of the previous month, a whole month, then a whole week and a day.
+        long start = mMonthStart - 3;
+        long nextMonth = TrackDateUtil.getNextMonthStart(mMonthStart);
+        long end = TrackDateUtil.getWeekStart(nextMonth + 7) + 7;
+        PlannedQuery totals = buildTotalsQuery(start, end);
+
+        assertSearchesIndex(totals.Plan, AppUsageSchema.TABLE_NAME, AppUsageSchema.INDEX_DATE);
+        assertSearchesIndex(totals.Plan, AppUsageWeeklySchema.TABLE_NAME, null);
+        assertSearchesIndex(totals.Plan, AppUsageMonthlySchema.TABLE_NAME, null);
+        assertNoUsageScan(totals.Plan);
+    }
+
+    /**
+     * A totals query and its plan.
+     */
+    private static class PlannedQuery {
+        final String Sql;
+        final List<String> Plan;
+
+        PlannedQuery(String sql, List<String> plan) {
+            Sql = sql;
+            Plan = plan;
+        }
+    }
+
+    private PlannedQuery buildTotalsQuery(long startDate, long endDate) {
+        ArrayList<Object> args = new ArrayList<Object>();
+        PreparedQuery query = mDatabase.buildAppUsageTotalsQuery(startDate, endDate, 0, args);
+        args.add(5);
+        return new PlannedQuery(query.getSql(), explain(query, args.toArray()));
+    }
+
+    private List<String> explain(PreparedQuery query, Object... args) {
+        Cursor cursor = mDatabase.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + query.getSql(),
+                query.toStrings(args));
+        ArrayList<String> plan = new ArrayList<String>();
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailIndex));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    /**
+     * Assert that the plan searches a table with an index.
+     * @param index Name of the index, or null for any index, e.g. the primary key.
+     */
+    private static void assertSearchesIndex(List<String> plan, String table, String index) {
+        for (String detail : plan) {
+            if (detail.startsWith("SEARCH") && detail.matches(".*\\b" + table + "\\b.*")
+                    && (index != null ? detail.contains(index) : detail.contains("INDEX") || detail.contains("PRIMARY KEY")))
+                return;
+        }
+        fail("No index search of " + table + " in " + plan);
+    }
+
+    /**
+     * Assert that the plan doesn't scan AppUsage or a rollup table, whose names start with AppUsage.
+     */
+    private static void assertNoUsageScan(List<String> plan) {
+        for (String detail : plan) {
+            assertFalse("Scans a usage table: " + plan,
+                    detail.startsWith("SCAN") && detail.contains(AppUsageSchema.TABLE_NAME));
+        }
+    }
+}
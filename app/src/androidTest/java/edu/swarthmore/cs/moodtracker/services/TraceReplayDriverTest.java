@@ -0,0 +1,111 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Calendar;
+import java.util.List;
+
+import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Replays a recorded trace through UsageAccounting and checks the day totals it comes up with.
+ */
+public class TraceReplayDriverTest extends TestCase {
+
+    // Starts at 23:00, so the maps session runs across midnight.
+    private static final String TRACE =
+            "# time (ms)  process\n"
+            + "0        com.example.mail\n"
+            + "600000   -\n"
+            + "900000   com.example.maps\n"
+            + "4500000  com.example.mail\n"
+            + "5400000  -\n";
+
+    private long mStartWallMs;
+    private long mFirstDate;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A day far from any daylight saving change, so every hour is 3600 s long.
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2015, Calendar.JANUARY, 15, 23, 0, 0);
+        mStartWallMs = calendar.getTimeInMillis();
+        mFirstDate = TrackDateUtil.getDaysSinceEpoch(mStartWallMs);
+    }
+
+    public void testDayTotalsMatchTrace() throws IOException {
+        TraceReplayDriver driver = new TraceReplayDriver(readTrace(), new FixedSamplingPolicy(1000),
+                mStartWallMs, AllocationCounter.NONE);
+        TraceReplayDriver.Result result = driver.run();
+
+        List<DailyUsage> days = driver.getDays();
+        assertEquals(2, days.size());
+
+        DailyUsage first = days.get(0);
+        assertEquals(mFirstDate, first.Date);
+        assertEquals(2, first.Entries.size());
+        assertUsage(first, "com.example.mail", 600);
+        // From 23:15 to midnight.
+        assertUsage(first, "com.example.maps", 2700);
+
+        DailyUsage second = days.get(1);
+        assertEquals(mFirstDate + 1, second.Date);
+        assertEquals(2, second.Entries.size());
+        // From midnight to 00:15.
+        assertUsage(second, "com.example.maps", 900);
+        assertUsage(second, "com.example.mail", 900);
+
+        assertEquals(2, result.Days);
+        assertEquals(0, result.MaxErrorSec);
+        assertEquals(0, result.TotalErrorSec);
+        assertEquals(5400, result.Samples);
+    }
+
+    public void testSlowerSamplingStaysWithinOneInterval() throws IOException {
+        TraceReplayDriver driver = new TraceReplayDriver(readTrace(), new FixedSamplingPolicy(7000),
+                mStartWallMs, AllocationCounter.NONE);
+        TraceReplayDriver.Result result = driver.run();
+
+        // Every change of foreground app is seen at most one interval late.
+        assertEquals(2, result.Days);
+        assertTrue("Max error " + result.MaxErrorSec + " s", result.MaxErrorSec <= 7);
+    }
+
+    public void testReplayCountsAllocationsWithCounter() throws IOException {
+        final int[] calls = new int[2];
+        AllocationCounter counter = new AllocationCounter() {
+            @Override
+            public void start() {
+                calls[0]++;
+            }
+
+            @Override
+            public long stop() {
+                calls[1]++;
+                return 42;
+            }
+        };
+        TraceReplayDriver.Result result = new TraceReplayDriver(readTrace(), new FixedSamplingPolicy(1000),
+                mStartWallMs, counter).run();
+
+        assertEquals(1, calls[0]);
+        assertEquals(1, calls[1]);
+        assertEquals(42, result.Allocations);
+    }
+
+    private TraceReplayForegroundSource readTrace() throws IOException {
+        return TraceReplayForegroundSource.read(new BufferedReader(new StringReader(TRACE)));
+    }
+
+    private static void assertUsage(DailyUsage day, String processName, int expectedSec) {
+        AppUsageEntry entry = day.Entries.get(processName);
+        assertNotNull(processName + " missing on day " + day.Date, entry);
+        assertEquals(processName + " on day " + day.Date, expectedSec, entry.UsageTimeSec);
+    }
+}
@@ -0,0 +1,185 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+
+import edu.swarthmore.cs.moodtracker.db.AppSession;
+import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Checks how UsageAccounting splits sessions at midnight and replays the journal after the
+ * process died. Elapsed time starts at 0 at 23:50.
+ */
+public class UsageAccountingTest extends TestCase {
+
+    private static final long MINUTE_MS = 60 * 1000;
+
+    /**
+     * Foreground source whose foreground app is set by the test. Every app is installed.
+     */
+    private static class FakeForegroundSource implements ForegroundSource {
+        String Foreground = null;
+
+        @Override
+        public String getForegroundProcess() {
+            return Foreground;
+        }
+
+        @Override
+        public PackageMetadataCache.PackageMetadata getMetadata(String processName) {
+            return new PackageMetadataCache.PackageMetadata(processName, processName, 1);
+        }
+    }
+
+    private final FakeForegroundSource mSource = new FakeForegroundSource();
+    private File mJournalFile;
+    // 23:50, ten minutes before midnight.
+    private long mStartWallMs;
+    private long mMidnightWallMs;
+    private long mFirstDate;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A day far from any daylight saving change.
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2015, Calendar.JANUARY, 15, 23, 50, 0);
+        mStartWallMs = calendar.getTimeInMillis();
+        mMidnightWallMs = TrackDateUtil.getNextMidnightMillis(mStartWallMs);
+        mFirstDate = TrackDateUtil.getDaysSinceEpoch(mStartWallMs);
+        mJournalFile = File.createTempFile("usage", ".journal");
+        mJournalFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJournalFile.delete();
+        super.tearDown();
+    }
+
+    public void testRollOverSplitsOpenSessionAtMidnight() {
+        UsageAccounting accounting = new UsageAccounting(mSource, new DailyUsage(mFirstDate));
+        mSource.Foreground = "com.example.mail";
+        assertTrue(accounting.sample(0, mStartWallMs));
+
+        // First sample after midnight, at 00:10.
+        long now = 20 * MINUTE_MS;
+        DailyUsage yesterday = accounting.rollOver(mFirstDate + 1, now, mStartWallMs + now);
+
+        assertEquals(mFirstDate, yesterday.Date);
+        assertEquals(600, yesterday.Entries.get("com.example.mail").UsageTimeSec);
+        AppSession closed = yesterday.ClosedSessions.get(yesterday.ClosedSessions.size() - 1);
+        assertEquals(mStartWallMs, closed.StartMs);
+        assertEquals(mMidnightWallMs, closed.EndMs);
+
+        // The rest of the session continues in the new day, from midnight.
+        DailyUsage today = accounting.getToday();
+        assertEquals(mFirstDate + 1, today.Date);
+        assertEquals("com.example.mail", accounting.getOpenSession().PackageName);
+        assertEquals(mMidnightWallMs, accounting.getOpenSession().StartMs);
+        assertEquals(mMidnightWallMs + 10 * MINUTE_MS, accounting.getOpenSessionEndMs(now));
+
+        accounting.closeSession(now + 5 * MINUTE_MS);
+        AppUsageEntry entry = today.Entries.get("com.example.mail");
+        assertEquals(mFirstDate + 1, entry.DaysSinceEpoch);
+        assertEquals(900, entry.UsageTimeSec);
+        assertEquals(600, yesterday.Entries.get("com.example.mail").UsageTimeSec);
+    }
+
+    public void testRollOverWithoutOpenSession() {
+        UsageAccounting accounting = new UsageAccounting(mSource, new DailyUsage(mFirstDate));
+        mSource.Foreground = "com.example.mail";
+        accounting.sample(0, mStartWallMs);
+        mSource.Foreground = null;
+        accounting.sample(5 * MINUTE_MS, mStartWallMs + 5 * MINUTE_MS);
+
+        DailyUsage yesterday = accounting.rollOver(mFirstDate + 1, 20 * MINUTE_MS, mStartWallMs + 20 * MINUTE_MS);
+
+        assertEquals(300, yesterday.Entries.get("com.example.mail").UsageTimeSec);
+        assertNull(accounting.getOpenSession());
+        assertTrue(accounting.getToday().Entries.isEmpty());
+        assertFalse(accounting.getToday().isDirty());
+    }
+
+    public void testRollOverSplitsJournalBetweenDays() throws IOException {
+        UsageJournal journal = new UsageJournal(mJournalFile);
+        UsageAccounting accounting = new UsageAccounting(mSource, new DailyUsage(mFirstDate));
+        accounting.setJournal(journal);
+        mSource.Foreground = "com.example.mail";
+        accounting.sample(0, mStartWallMs);
+
+        DailyUsage yesterday = accounting.rollOver(mFirstDate + 1, 20 * MINUTE_MS, mStartWallMs + 20 * MINUTE_MS);
+
+        // The part before midnight is the only record of yesterday.
+        assertEquals(1, yesterday.JournalEnd);
+        assertEquals(1, accounting.getToday().JournalStart);
+        assertEquals(Long.MAX_VALUE, accounting.getToday().JournalEnd);
+    }
+
+    public void testReplayJournalAddsSessionsToTheirOwnDay() throws IOException {
+        // The previous process journaled a session before midnight, one after, and died while
+        // the last one was open. Nothing of it was saved.
+        UsageJournal journal = new UsageJournal(mJournalFile);
+        writeSession(journal, "com.example.mail", mStartWallMs, mMidnightWallMs);
+        writeSession(journal, "com.example.mail", mMidnightWallMs, mMidnightWallMs + 5 * MINUTE_MS);
+        journal.openSession(UsageJournal.encodeName("com.example.maps"), mMidnightWallMs + 6 * MINUTE_MS);
+        journal.updateOpenSession(mMidnightWallMs + 8 * MINUTE_MS);
+
+        // The new process has yesterday's usage from the database, 100 s of mail.
+        UsageJournal reopened = new UsageJournal(mJournalFile);
+        List<UsageJournal.Record> records = reopened.replay();
+        HashMap<Long, DailyUsage> pastDays = new HashMap<Long, DailyUsage>();
+        DailyUsage stored = new DailyUsage(mFirstDate);
+        stored.Entries.put("com.example.mail", new AppUsageEntry("com.example.mail", "Mail", 100, mFirstDate));
+        pastDays.put(mFirstDate, stored);
+
+        UsageAccounting accounting = new UsageAccounting(mSource, new DailyUsage(mFirstDate + 1));
+        accounting.setJournal(reopened);
+        assertEquals(3, accounting.replayJournal(records, pastDays));
+
+        DailyUsage yesterday = pastDays.get(mFirstDate);
+        assertEquals(700, yesterday.Entries.get("com.example.mail").UsageTimeSec);
+        assertTrue(yesterday.DirtyPackages.contains("com.example.mail"));
+        assertEquals(1, yesterday.ClosedSessions.size());
+        assertEquals(0, yesterday.JournalStart);
+        assertEquals(1, yesterday.JournalEnd);
+
+        DailyUsage today = accounting.getToday();
+        assertEquals(300, today.Entries.get("com.example.mail").UsageTimeSec);
+        assertEquals(120, today.Entries.get("com.example.maps").UsageTimeSec);
+        assertEquals(2, today.ClosedSessions.size());
+        assertEquals(1, today.JournalStart);
+    }
+
+    public void testReplayJournalSkipsSavedSessions() throws IOException {
+        UsageJournal journal = new UsageJournal(mJournalFile);
+        writeSession(journal, "com.example.mail", mStartWallMs, mStartWallMs + 5 * MINUTE_MS);
+        writeSession(journal, "com.example.maps", mStartWallMs + 5 * MINUTE_MS, mStartWallMs + 8 * MINUTE_MS);
+        // The second session was saved, the first one wasn't.
+        journal.checkpoint(1, 2, Long.MIN_VALUE);
+
+        UsageJournal reopened = new UsageJournal(mJournalFile);
+        UsageAccounting accounting = new UsageAccounting(mSource, new DailyUsage(mFirstDate));
+        accounting.setJournal(reopened);
+        HashMap<Long, DailyUsage> pastDays = new HashMap<Long, DailyUsage>();
+        assertEquals(1, accounting.replayJournal(reopened.replay(), pastDays));
+
+        assertTrue(pastDays.isEmpty());
+        DailyUsage today = accounting.getToday();
+        assertEquals(300, today.Entries.get("com.example.mail").UsageTimeSec);
+        assertNull(today.Entries.get("com.example.maps"));
+        assertEquals(0, today.JournalStart);
+    }
+
+    private static void writeSession(UsageJournal journal, String packageName, long startMs, long endMs) {
+        assertTrue(journal.openSession(UsageJournal.encodeName(packageName), startMs));
+        journal.closeOpenSession(endMs);
+    }
+}
@@ -0,0 +1,153 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Checks what UsageJournal replays after the process dies, and what checkpoint() drops.
+ * Reopening the journal file stands in for a new process.
+ */
+public class UsageJournalTest extends TestCase {
+
+    private File mFile;
+    private UsageJournal mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("usage", ".journal");
+        mFile.delete();
+        mJournal = new UsageJournal(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testReplayReturnsClosedSessions() throws IOException {
+        writeSession("com.example.mail", 1000, 5000);
+        writeSession("com.example.maps", 6000, 9000);
+
+        List<UsageJournal.Record> records = reopen().replay();
+        assertEquals(2, records.size());
+        assertRecord(records.get(0), "com.example.mail", 1000, 5000, 4000);
+        assertRecord(records.get(1), "com.example.maps", 6000, 9000, 3000);
+        assertEquals(0, records.get(0).Mark);
+        assertEquals(1, records.get(1).Mark);
+    }
+
+    public void testReplayClosesOpenSessionAtLastUpdate() throws IOException {
+        mJournal.openSession(UsageJournal.encodeName("com.example.mail"), 1000);
+        mJournal.updateOpenSession(4000);
+
+        List<UsageJournal.Record> records = reopen().replay();
+        assertEquals(1, records.size());
+        assertRecord(records.get(0), "com.example.mail", 1000, 4000, 3000);
+    }
+
+    public void testCheckpointDropsSavedRecords() throws IOException {
+        writeSession("com.example.mail", 1000, 5000);
+        writeSession("com.example.maps", 6000, 9000);
+        long mark = mJournal.getMark();
+        writeSession("com.example.mail", 9000, 12000);
+
+        mJournal.checkpoint(0, mark, Long.MIN_VALUE);
+
+        // Marks stay absolute after records are dropped.
+        assertEquals(3, mJournal.getMark());
+        List<UsageJournal.Record> records = reopen().replay();
+        assertEquals(1, records.size());
+        assertRecord(records.get(0), "com.example.mail", 9000, 12000, 3000);
+    }
+
+    public void testCheckpointOnlyCountsSavedPartOfOpenSession() throws IOException {
+        writeSession("com.example.mail", 1000, 5000);
+        mJournal.openSession(UsageJournal.encodeName("com.example.maps"), 6000);
+        mJournal.updateOpenSession(8000);
+        long mark = mJournal.getMark();
+
+        // The save wrote the open session up to 8000.
+        mJournal.checkpoint(0, mark, 8000);
+        mJournal.updateOpenSession(11000);
+
+        List<UsageJournal.Record> records = reopen().replay();
+        assertEquals(1, records.size());
+        assertRecord(records.get(0), "com.example.maps", 6000, 11000, 3000);
+    }
+
+    public void testCheckpointKeepsRecordsOfFailedSave() throws IOException {
+        // Yesterday's sessions, then today's.
+        writeSession("com.example.mail", 1000, 5000);
+        long dayChange = mJournal.getMark();
+        writeSession("com.example.maps", 6000, 9000);
+        writeSession("com.example.mail", 9000, 12000);
+        long mark = mJournal.getMark();
+
+        // The save of yesterday failed, the later save of today succeeded.
+        mJournal.checkpoint(dayChange, mark, Long.MIN_VALUE);
+
+        List<UsageJournal.Record> records = reopen().replay();
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), "com.example.mail", 1000, 5000, 4000);
+        assertEquals(0, records.get(1).getUnflushedMs());
+        assertEquals(0, records.get(2).getUnflushedMs());
+
+        // Once yesterday is saved again, everything can go.
+        mJournal.checkpoint(0, dayChange, Long.MIN_VALUE);
+        assertTrue(reopen().replay().isEmpty());
+    }
+
+    public void testCheckpointOfOverlappingSavesInAnyOrder() throws IOException {
+        writeSession("com.example.mail", 1000, 5000);
+        long firstMark = mJournal.getMark();
+        writeSession("com.example.maps", 6000, 9000);
+        long secondMark = mJournal.getMark();
+
+        // The second save finishes first.
+        mJournal.checkpoint(firstMark, secondMark, Long.MIN_VALUE);
+        mJournal.checkpoint(0, firstMark, Long.MIN_VALUE);
+
+        assertTrue(reopen().replay().isEmpty());
+        assertEquals(2, mJournal.getMark());
+    }
+
+    public void testIsFullLeavesRoomForOpenSession() {
+        for (int i = 0; i < UsageJournal.RECORD_CAPACITY - 2; i++) {
+            writeSession("com.example.mail", i * 10, i * 10 + 5);
+        }
+        assertFalse(mJournal.isFull());
+        writeSession("com.example.mail", 100000, 100005);
+        assertTrue(mJournal.isFull());
+
+        mJournal.checkpoint(0, mJournal.getMark(), Long.MIN_VALUE);
+        assertFalse(mJournal.isFull());
+    }
+
+    public void testOpenSessionRejectsTooLongName() {
+        byte[] name = new byte[UsageJournal.MAX_NAME_LENGTH + 1];
+        assertFalse(mJournal.openSession(name, 1000));
+        assertTrue(mJournal.openSession(UsageJournal.encodeName("com.example.mail"), 1000));
+    }
+
+    private void writeSession(String packageName, long startMs, long endMs) {
+        assertTrue(mJournal.openSession(UsageJournal.encodeName(packageName), startMs));
+        mJournal.closeOpenSession(endMs);
+    }
+
+    private UsageJournal reopen() throws IOException {
+        return new UsageJournal(mFile);
+    }
+
+    private static void assertRecord(UsageJournal.Record record, String packageName, long startMs, long endMs,
+                                     long unflushedMs) {
+        assertEquals(packageName, record.PackageName);
+        assertEquals(startMs, record.StartMs);
+        assertEquals(endMs, record.EndMs);
+        assertEquals(unflushedMs, record.getUnflushedMs());
+    }
+}
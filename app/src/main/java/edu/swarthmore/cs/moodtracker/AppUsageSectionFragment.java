@@ -18,6 +18,7 @@ import java.util.List;
 
 import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
 import edu.swarthmore.cs.moodtracker.db.ReadAppUsageTask;
+import edu.swarthmore.cs.moodtracker.services.AppUsageSnapshot;
 import edu.swarthmore.cs.moodtracker.services.TrackService;
 import edu.swarthmore.cs.moodtracker.util.AppUsageListAdapter;
 import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
@@ -40,6 +41,11 @@ public class AppUsageSectionFragment extends Fragment {
     private int mDateRange = 0;
     private int mDisplayLimit = -1;
 
+    // What the list currently shows. Used to skip reloading when nothing changed.
+    private long mShownSnapshotVersion = -1;
+    private int mShownDateRange = 0;
+    private int mShownDisplayLimit = -1;
+
     // Other saved variables.
     private View mWaitingView = null;
     private ListView mAppUsageListView = null;
@@ -100,6 +106,7 @@ public class AppUsageSectionFragment extends Fragment {
      */
     public void unsetService() {
         mService = null;
+        mShownSnapshotVersion = -1;
         syncLayoutWithData(false);
     }
 
@@ -126,13 +133,27 @@ public class AppUsageSectionFragment extends Fragment {
         if (!allInitialized())
             return;
 
+        // Nothing to do if the list already shows this filter and the service's usage hasn't
+        // changed since. Past days don't change, and a new day publishes a new snapshot.
+        AppUsageSnapshot snapshot = mService.getAppUsageSnapshot();
+        if (snapshot != null && !snapshot.hasOpenSession() && mAppUsageListView.getAdapter() != null
+                && snapshot.getVersion() == mShownSnapshotVersion
+                && mDateRange == mShownDateRange && mDisplayLimit == mShownDisplayLimit) {
+            syncLayoutWithData(true);
+            return;
+        }
+
         syncLayoutWithData(false);
         // Read app usage from database (asynchronously) and use result to update usage list.
         long currentDate = TrackDateUtil.getDaysSinceEpoch();
+        final int dateRange = mDateRange, displayLimit = mDisplayLimit;
         new ReadAppUsageTask(getActivity(), mService) {
             @Override
             public void onFinish(List<AppUsageEntry> result) {
                 if (result != null) {
+                    mShownSnapshotVersion = getSnapshotVersion();
+                    mShownDateRange = dateRange;
+                    mShownDisplayLimit = displayLimit;
                     AppUsageListAdapter adapter = (AppUsageListAdapter) mAppUsageListView.getAdapter();
                     if (adapter != null) {
                         adapter.clear();
@@ -0,0 +1,174 @@
+package edu.swarthmore.cs.moodtracker;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import edu.swarthmore.cs.moodtracker.db.TrackDatabaseBenchmark;
+import edu.swarthmore.cs.moodtracker.services.AdaptiveSamplingPolicy;
+import edu.swarthmore.cs.moodtracker.services.DebugAllocationCounter;
+import edu.swarthmore.cs.moodtracker.services.FixedSamplingPolicy;
+import edu.swarthmore.cs.moodtracker.services.TraceReplayDriver;
+import edu.swarthmore.cs.moodtracker.services.TraceReplayForegroundSource;
+import edu.swarthmore.cs.moodtracker.services.TrackService;
+
+/**
+ * Activity that shows what tracking costs on this device, as printed by
+ * TrackService.dumpMetrics(). Reached from SettingsActivity.
+ */
+public class DiagnosticsActivity extends Activity {
+
+    // Length and seed of the trace replayed by the replay benchmark.
+    private static final long REPLAY_DURATION_MS = 7 * 24 * 3600 * 1000L;
+    private static final long REPLAY_SEED = 42;
+    private static final int REPLAY_APP_COUNT = 30;
+    // Number of calls timed by the database benchmark.
+    private static final int DB_BENCHMARK_ITERATIONS = 200;
+    // Rows read by the row mapper benchmark.
+    private static final int ROW_MAPPER_BENCHMARK_ROWS = 100000;
+
+    // Connection to TrackService
+    private TrackService mService = null;
+    private ServiceConnection mServiceConnection = new DiagnosticsServiceConnection();
+
+    private TextView mMetricsView = null;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        mMetricsView = (TextView) findViewById(R.id.diagnostics_metrics_text);
+        Button refreshButton = (Button) findViewById(R.id.diagnostics_refresh_btn);
+        refreshButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                showMetrics();
+            }
+        });
+
+        Button replayButton = (Button) findViewById(R.id.diagnostics_replay_btn);
+        replayButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                runReplayBenchmark();
+            }
+        });
+
+        Button dbBenchmarkButton = (Button) findViewById(R.id.diagnostics_db_benchmark_btn);
+        dbBenchmarkButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                runDatabaseBenchmark();
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Bind without starting, the service is started by MainActivity. If it isn't running,
+        // the connection is made once it starts.
+        bindService(new Intent(this, TrackService.class), mServiceConnection, 0);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        unbindService(mServiceConnection);
+        mService = null;
+    }
+
+    /**
+     * Print the service's metrics into the text view.
+     */
+    private void showMetrics() {
+        if (mService == null) {
+            mMetricsView.setText(R.string.diagnostics_waiting_text);
+            return;
+        }
+        StringWriter text = new StringWriter();
+        PrintWriter writer = new PrintWriter(text);
+        mService.dumpMetrics(writer);
+        writer.flush();
+        mMetricsView.setText(text.toString());
+    }
+
+    /**
+     * Replay a generated week of foreground events with the adaptive and the fixed sampling
+     * policy, and show what the replays measured. Runs on the thread pool, since the replay
+     * takes long and the serial executor runs the tracker's reads and saves.
+     */
+    private void runReplayBenchmark() {
+        mMetricsView.setText(R.string.diagnostics_replay_running_text);
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                long startWallMs = System.currentTimeMillis();
+                TraceReplayForegroundSource source = TraceReplayForegroundSource.generate(
+                        REPLAY_SEED, REPLAY_DURATION_MS, REPLAY_APP_COUNT);
+                TraceReplayDriver.Result adaptive = new TraceReplayDriver(source, new AdaptiveSamplingPolicy(),
+                        startWallMs, new DebugAllocationCounter()).run();
+                TraceReplayDriver.Result fixed = new TraceReplayDriver(source, new FixedSamplingPolicy(1000),
+                        startWallMs, new DebugAllocationCounter()).run();
+                return "Replay of " + source.getEventCount() + " events\n"
+                        + "Adaptive sampling: " + adaptive + "\n"
+                        + "Fixed 1 s sampling: " + fixed + "\n";
+            }
+
+            @Override
+            protected void onPostExecute(String result) {
+                mMetricsView.setText(result);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Time database calls and show the report.
+     * Runs on the thread pool, so it doesn't hold up the tracker's tasks on the serial executor.
+     */
+    private void runDatabaseBenchmark() {
+        mMetricsView.setText(R.string.diagnostics_db_benchmark_running_text);
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                TrackDatabaseBenchmark benchmark = new TrackDatabaseBenchmark(DiagnosticsActivity.this);
+                return benchmark.runConnectionBenchmark(DB_BENCHMARK_ITERATIONS) + "\n"
+                        + benchmark.runRowMapperBenchmark(ROW_MAPPER_BENCHMARK_ROWS);
+            }
+
+            @Override
+            protected void onPostExecute(String result) {
+                mMetricsView.setText(result);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * The ServiceConnection class used by this activity.
+     */
+    private class DiagnosticsServiceConnection implements ServiceConnection {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+            TrackService.TrackBinder binder = (TrackService.TrackBinder) iBinder;
+            mService = binder.getService();
+            showMetrics();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mService = null;
+            showMetrics();
+        }
+    }
+}
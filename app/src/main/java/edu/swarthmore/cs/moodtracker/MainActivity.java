@@ -259,9 +259,7 @@ public class MainActivity extends FragmentActivity
         }
 
         TrackDatabase db = TrackDatabase.getInstance(this);
-        for (TextMsgEntry e:entries) {
-            db.writeTextMsgRecord(e);
-        }
+        db.writeTextMsgBatch(entries);
     }
 
 
@@ -1,5 +1,6 @@
 package edu.swarthmore.cs.moodtracker;
 
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.Preference;
@@ -15,6 +16,7 @@ import edu.swarthmore.cs.moodtracker.db.ExportDataTask;
 public class SettingsActivity extends PreferenceActivity {
 
     public static final String KEY_PREF_EXPORT_DATA = "pref_export_data";
+    public static final String KEY_PREF_DIAGNOSTICS = "pref_diagnostics";
 
     private PreferenceFragment mSettingsFragment;
 
@@ -64,6 +66,16 @@ public class SettingsActivity extends PreferenceActivity {
                         }
                     }
             );
+
+            findPreference(KEY_PREF_DIAGNOSTICS).setOnPreferenceClickListener(
+                    new Preference.OnPreferenceClickListener() {
+                        @Override
+                        public boolean onPreferenceClick(Preference preference) {
+                            startActivity(new Intent(getActivity(), DiagnosticsActivity.class));
+                            return true;
+                        }
+                    }
+            );
         }
 
         private void exportDataToJSON() {
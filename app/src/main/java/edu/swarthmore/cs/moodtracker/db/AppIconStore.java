@@ -0,0 +1,207 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import edu.swarthmore.cs.moodtracker.R;
+
+/**
+ * Content-addressed file store of app icons, under files/icons.
+ * Icons are downscaled to the largest size the app usage list shows them at, and compressed once.
+ * Each file is named after the SHA-1 hash of its bytes, and the AppInfo table only keeps the hash.
+ * So usage queries don't carry icon BLOBs, and apps with the same icon share one file.
+ * Files are never changed once written, so they can be read from any thread.
+ * Icons of updated or removed apps are left behind when AppInfo gets a new hash, so sweep()
+ * deletes the files no AppInfo row refers to anymore.
+ */
+public class AppIconStore {
+    public static final String TAG = "AppIconStore";
+    public static final String DIRECTORY_NAME = "icons";
+
+    private static final int WEBP_QUALITY = 90;
+    // Files touched more recently than this are never swept. An icon is stored before the
+    // transaction that writes its hash, so a sweep in between must not delete it.
+    private static final long SWEEP_GRACE_MS = 60 * 60 * 1000;
+
+    private final File mDirectory;
+    // Maximum width and height of stored icons, in pixels.
+    private final int mIconSize;
+
+    /**
+     * Construct the icon store of the app.
+     * @param context Used to find the files directory and the list item size.
+     */
+    public AppIconStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+        mIconSize = context.getResources().getDimensionPixelSize(R.dimen.app_usage_list_item_height_sw600dp);
+    }
+
+    /**
+     * Store an icon, unless the same icon is already stored.
+     * @param icon The icon, at any size.
+     * @return The hash of the stored icon, or null if the icon is null or cannot be stored.
+     */
+    public String put(Bitmap icon) {
+        if (icon == null)
+            return null;
+
+        byte[] bytes = encode(downscale(icon));
+        String hash = hash(bytes);
+        if (hash == null)
+            return null;
+
+        // Touch an existing file, so a sweep doesn't delete it before its hash is written.
+        File file = getFile(hash);
+        if (file.exists()) {
+            file.setLastModified(System.currentTimeMillis());
+            return hash;
+        }
+
+        // Write to a temporary file first, so a reader never sees half an icon.
+        File tempFile = new File(mDirectory, hash + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+                throw new IOException("Cannot create " + mDirectory);
+            stream = new FileOutputStream(tempFile);
+            stream.write(bytes);
+            stream.close();
+            stream = null;
+            if (!tempFile.renameTo(file))
+                throw new IOException("Cannot rename " + tempFile);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "put(): " + e.toString());
+            tempFile.delete();
+            return null;
+        }
+        finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                }
+                catch (IOException e) {
+                    // Nothing left to do.
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Store an icon that is encoded in a byte array, e.g. an icon BLOB from an old database.
+     * @param encoded The encoded icon.
+     * @return The hash of the stored icon, or null if it cannot be decoded or stored.
+     */
+    public String put(byte[] encoded) {
+        if (encoded == null)
+            return null;
+        return put(BitmapFactory.decodeByteArray(encoded, 0, encoded.length));
+    }
+
+    /**
+     * Decode a stored icon.
+     * @param hash The hash returned by put().
+     * @return The icon, or null if no icon with this hash is stored.
+     */
+    public Bitmap get(String hash) {
+        if (hash == null)
+            return null;
+        File file = getFile(hash);
+        if (!file.exists())
+            return null;
+        return BitmapFactory.decodeFile(file.getPath());
+    }
+
+    /**
+     * Delete the stored icons that are not referenced anymore, and temporary files left by
+     * writes that died. Files written or touched by put() in the last hour are kept.
+     * Must not be called on the main thread.
+     * @param referencedHashes The hashes of every icon that is still used.
+     * @return The number of files deleted.
+     */
+    public int sweep(Set<String> referencedHashes) {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+            return 0;
+
+        long keepAfter = System.currentTimeMillis() - SWEEP_GRACE_MS;
+        int deleted = 0;
+        for (File file : files) {
+            if (referencedHashes.contains(file.getName()) || file.lastModified() > keepAfter)
+                continue;
+            if (file.delete())
+                deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Get the file of an icon.
+     * @param hash The hash returned by put().
+     * @return The file, which may not exist.
+     */
+    public File getFile(String hash) {
+        return new File(mDirectory, hash);
+    }
+
+    /**
+     * Scale an icon down to the size icons are stored at. Smaller icons are kept as is.
+     * @param icon The icon.
+     * @return An icon no wider or higher than the largest list item.
+     */
+    public Bitmap downscale(Bitmap icon) {
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        if (width <= mIconSize && height <= mIconSize)
+            return icon;
+
+        float scale = (float) mIconSize / Math.max(width, height);
+        return Bitmap.createScaledBitmap(icon, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
+    /**
+     * Compress an icon. WEBP keeps transparency from API 18 on, older versions get PNG.
+     * BitmapFactory tells the formats apart, so files don't need an extension.
+     */
+    private static byte[] encode(Bitmap icon) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            icon.compress(Bitmap.CompressFormat.WEBP, WEBP_QUALITY, stream);
+        else
+            icon.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        return stream.toByteArray();
+    }
+
+    /**
+     * Get the SHA-1 hash of some bytes, in hex.
+     */
+    private static String hash(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "hash(): " + e.toString());
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest(bytes)) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+/**
+ * Stores the information of an AppSession table entry in the Track database.
+ * A session is one continuous stretch of time during which an app stayed in foreground.
+ * Times are wall clock milliseconds (System.currentTimeMillis()).
+ */
+public class AppSession {
+    public String PackageName = null;
+    public long StartMs = -1;
+    public long EndMs = -1;
+
+
+    /**
+     * Construct an AppSession.
+     * @param pkgName Package (process) name of the foreground app.
+     * @param startMs When the app came to foreground.
+     * @param endMs When the app left foreground. Equal to startMs while the session is open.
+     */
+    public AppSession(String pkgName, long startMs, long endMs) {
+        this.PackageName = pkgName;
+        this.StartMs = startMs;
+        this.EndMs = endMs;
+    }
+
+    /**
+     * Get the length of this session.
+     * @return The duration in milliseconds, never negative.
+     */
+    public long getDurationMs() {
+        return Math.max(0, EndMs - StartMs);
+    }
+}
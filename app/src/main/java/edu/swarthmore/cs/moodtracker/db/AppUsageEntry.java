@@ -1,15 +1,10 @@
 package edu.swarthmore.cs.moodtracker.db;
 
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
-
 /**
  * Created by Peng on 10/19/2014.
  * Stores the information of an AppUsage table entry in the Track database.
@@ -24,70 +19,49 @@ public class AppUsageEntry {
 
     public String PackageName = null;
     public String AppName = null;
-    public Bitmap AppIcon = null;
+    // Hash of the icon in the AppIconStore. Only set on entries read from the database.
+    // Icons themselves are kept by AppIconCache, keyed by PackageName.
+    public String IconHash = null;
     public int UsageTimeSec = -1;
     public long DaysSinceEpoch = -1;
+    // Version of the app the name and icon belong to, or -1 if unknown.
+    public int VersionCode = -1;
 
+    // Milliseconds of usage not yet counted in UsageTimeSec. See addUsageMillis().
+    private long mUsageRemainderMs = 0;
 
     /**
      * Construct an empty AppUsageEntry
      */
-    public AppUsageEntry(String pkgName, String appName, Bitmap appIcon, int usage, long date) {
+    public AppUsageEntry(String pkgName, String appName, int usage, long date) {
         this.PackageName = pkgName;
         this.AppName = appName;
-        this.AppIcon = appIcon;
         this.UsageTimeSec = usage;
         this.DaysSinceEpoch = date;
     }
 
     /**
-     * Construct an AppUsageEntry instance from a database cursor. Information is read from
-     * the current rpw of the cursor, or the default values are kept if cursor is at the end.
-     * Position of the cursor is incremented by 1 after construction.
-     * @param cursor A Cursor returned from database query.
+     * Construct a copy of another AppUsageEntry.
+     * @param other The entry to copy.
      */
-    public AppUsageEntry(Cursor cursor){
-        // Keep default values if cursor is already finished reading.
-        if (cursor.isAfterLast()) {
-            return;
-        }
-
-        // Get the Package Name column
-        int index = cursor.getColumnIndex(TrackContract.AppUsageSchema.COLUMN_PACKAGE);
-        if (index >= 0)
-            this.PackageName = cursor.getString(index);
-        else
-            Log.e(TAG, "AppUsageEntry(Cursor): COLUMN_PACKAGE not found");
-
-        // Get the App Name column
-        index = cursor.getColumnIndex(TrackContract.AppInfoSchema.COLUMN_APP_NAME);
-        if (index >= 0)
-            this.AppName = cursor.getString(index);
-        else
-            Log.e(TAG, "AppUsageEntry(Cursor): COLUMN_APP_NAME not found");
-
-        // Get the App Icon column
-        index = cursor.getColumnIndex(TrackContract.AppInfoSchema.COLUMN_APP_ICON);
-        if (index >= 0)
-            this.populateIconFromByteArray(cursor.getBlob(index));
-        else
-            Log.e(TAG, "AppUsageEntry(Cursor): COLUMN_APP_ICON not found");
-
-        // Get the Usage Time column
-        index = cursor.getColumnIndex(TrackContract.AppUsageSchema.COLUMN_USAGE_SEC);
-        if (index >= 0)
-            this.UsageTimeSec = cursor.getInt(index);
-        else
-            Log.e(TAG, "AppUsageEntry(Cursor): COLUMN_USAGE_SEC not found");
-
-        // Get the Date column
-        index = cursor.getColumnIndex(TrackContract.AppUsageSchema.COLUMN_DATE);
-        if (index >= 0)
-            this.DaysSinceEpoch = cursor.getLong(index);
-        else
-            Log.e(TAG, "AppUsageEntry(Cursor): COLUMN_DATE not found");
+    public AppUsageEntry(AppUsageEntry other) {
+        this(other.PackageName, other.AppName, other.UsageTimeSec, other.DaysSinceEpoch);
+        this.VersionCode = other.VersionCode;
+        this.IconHash = other.IconHash;
+        this.mUsageRemainderMs = other.mUsageRemainderMs;
+    }
 
-        cursor.moveToNext();
+    /**
+     * Add some usage time to this entry. Sub-second leftovers are carried over to the next call,
+     * so crediting many short intervals does not lose time to rounding.
+     * @param millis The usage time to add, in milliseconds.
+     */
+    public void addUsageMillis(long millis) {
+        if (millis <= 0)
+            return;
+        mUsageRemainderMs += millis;
+        UsageTimeSec += (int) (mUsageRemainderMs / 1000);
+        mUsageRemainderMs %= 1000;
     }
 
 
@@ -109,26 +83,41 @@ public class AppUsageEntry {
         return jsonObj;
     }
 
-
     /**
-     * Converts the icon of this app usage entry to a byte array. Used in database storage.
-     * @return The encoded byte array, using PNG format (no information loss).
+     * Maps rows of app usage queries, which join AppUsage and AppInfo, to AppUsageEntries.
+     * Columns a query doesn't select keep their default values.
      */
-    public byte[] getIconInByteArray() {
-        if (this.AppIcon == null)
-            return null;
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        this.AppIcon.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        return stream.toByteArray();
-    }
+    public static class Mapper extends RowMapper<AppUsageEntry> {
+        private int mPackageIndex, mAppNameIndex, mIconHashIndex, mVersionCodeIndex;
+        private int mUsageSecIndex, mDateIndex;
+
+        @Override
+        protected void resolve(Cursor cursor) {
+            mPackageIndex = getColumnIndex(cursor, TrackContract.AppUsageSchema.COLUMN_PACKAGE);
+            mAppNameIndex = getColumnIndex(cursor, TrackContract.AppInfoSchema.COLUMN_APP_NAME);
+            // The icon itself is loaded from the AppIconStore.
+            mIconHashIndex = getColumnIndex(cursor, TrackContract.AppInfoSchema.COLUMN_ICON_HASH);
+            mVersionCodeIndex = getColumnIndex(cursor, TrackContract.AppInfoSchema.COLUMN_VERSION_CODE);
+            mUsageSecIndex = getColumnIndex(cursor, TrackContract.AppUsageSchema.COLUMN_USAGE_SEC);
+            mDateIndex = getColumnIndex(cursor, TrackContract.AppUsageSchema.COLUMN_DATE);
+        }
 
-    /**
-     * Populate the app icon of this entry using an encoded byte array.
-     * @param byteArray The encoded byte array to be converted to BitMap.
-     */
-    public void populateIconFromByteArray(byte[] byteArray) {
-        if (byteArray == null)
-            return;
-        this.AppIcon = BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length);
+        @Override
+        protected AppUsageEntry map(Cursor cursor) {
+            AppUsageEntry entry = new AppUsageEntry(null, null, -1, -1);
+            if (mPackageIndex >= 0)
+                entry.PackageName = cursor.getString(mPackageIndex);
+            if (mAppNameIndex >= 0)
+                entry.AppName = cursor.getString(mAppNameIndex);
+            if (mIconHashIndex >= 0)
+                entry.IconHash = cursor.getString(mIconHashIndex);
+            if (mVersionCodeIndex >= 0)
+                entry.VersionCode = cursor.getInt(mVersionCodeIndex);
+            if (mUsageSecIndex >= 0)
+                entry.UsageTimeSec = cursor.getInt(mUsageSecIndex);
+            if (mDateIndex >= 0)
+                entry.DaysSinceEpoch = cursor.getLong(mDateIndex);
+            return entry;
+        }
     }
 }
@@ -0,0 +1,48 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Fills a table or column that a Migration created, a chunk at a time.
+ * Each chunk runs in its own transaction, together with saving where the next chunk starts, so
+ * a backfill that is interrupted resumes from its last finished chunk. Chunks must be
+ * idempotent, and must stay correct while the app keeps writing between them.
+ */
+public abstract class Backfill {
+    // Position of a backfill that has nothing left to do.
+    public static final long DONE = Long.MAX_VALUE;
+
+    // Unique name of the backfill, the key of its row in MigrationState.
+    public final String Name;
+
+    /**
+     * @param name Unique name of the backfill. Must never change, since it is stored.
+     */
+    protected Backfill(String name) {
+        Name = name;
+    }
+
+    /**
+     * Find where the first chunk starts. Called in the transaction of onUpgrade(), so it should
+     * be a quick query.
+     * @param db The database being upgraded.
+     * @return The position of the first chunk, or DONE if there is nothing to fill.
+     */
+    public abstract long getStartPosition(SQLiteDatabase db);
+
+    /**
+     * Fill one chunk. Called in a transaction.
+     * @param db The database.
+     * @param position Where the chunk starts, as returned by the previous call.
+     * @return Where the next chunk starts, or DONE.
+     */
+    public abstract long runChunk(SQLiteDatabase db, long position);
+
+    /**
+     * Estimate how much of the backfill is done.
+     * @param db The database.
+     * @param position Where the next chunk starts.
+     * @return The fraction done, from 0 to 1.
+     */
+    public abstract float getProgress(SQLiteDatabase db, long position);
+}
@@ -17,8 +17,6 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
 
 import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
 
@@ -107,164 +105,156 @@ public abstract class ExportDataTask extends AsyncTask<Integer, Integer, Boolean
     }
 
     private boolean exportAppUsageData(File saveDir, ArrayList<Uri> filesToScan) {
-
-        // Pull data from database.
-        List<AppUsageEntry> allEntries = mDatabase.readAppUsage(-1, -1);
-        HashMap<Long, List<AppUsageEntry> > entriesByDay = new HashMap<Long, List<AppUsageEntry>>();
-
-        for (AppUsageEntry entry : allEntries) {
-            if (!entriesByDay.containsKey(entry.DaysSinceEpoch)) {
-                entriesByDay.put(entry.DaysSinceEpoch, new ArrayList<AppUsageEntry>());
+        DayFileExporter<AppUsageEntry> exporter = new DayFileExporter<AppUsageEntry>(saveDir, filesToScan,
+                "AppUsage", "AppUsage", "app usage") {
+            @Override
+            long getDay(AppUsageEntry entry) {
+                return entry.DaysSinceEpoch;
             }
-            entriesByDay.get(entry.DaysSinceEpoch).add(entry);
-        }
 
-        for (long date : entriesByDay.keySet()) {
-
-            File saveFile = new File(saveDir, "AppUsage" + String.valueOf(date) + ".json");
-            if (saveFile.exists()) {
-                if (date == TrackDateUtil.getDaysSinceEpoch() )
-                    Log.d(TAG, "deleting today (" + date + ") app usage file: " + (saveFile.delete() ? "success" : "fail"));
-                else
-                    continue;
+            @Override
+            JSONObject toJSON(AppUsageEntry entry) throws JSONException {
+                return entry.toJSON();
             }
+        };
+        mDatabase.forEachAppUsage(-1, -1, exporter);
+        return exporter.finish();
+    }
 
-            List<AppUsageEntry> oneDayEntries = entriesByDay.get(date);
-            JSONObject rootObject;
-            try {
-                rootObject = appUsageListToJSON(oneDayEntries);
+    private boolean exportSurveyData(File saveDir, ArrayList<Uri> filesToScan) {
+        DayFileExporter<SurveyEntry> exporter = new DayFileExporter<SurveyEntry>(saveDir, filesToScan,
+                "SurveyInfo", "SurveyInfo", "survey info") {
+            @Override
+            long getDay(SurveyEntry entry) {
+                return TrackDateUtil.getDaysSinceEpoch(entry.getDate());
             }
-            catch (JSONException e) {
-                mReason = "Converting day " + date + " usage to JSON failed";
-                return false;
+
+            @Override
+            JSONObject toJSON(SurveyEntry entry) throws JSONException {
+                return entry.toJSON();
             }
+        };
+        mDatabase.forEachSurveyEntry(exporter);
+        return exporter.finish();
+    }
 
-            try  {
-                FileOutputStream fOut = new FileOutputStream(saveFile);
-                OutputStreamWriter myOutWriter = new OutputStreamWriter(fOut);
-                myOutWriter.write(rootObject.toString());
-                myOutWriter.flush();
-                myOutWriter.close();
-                fOut.close();
-                filesToScan.add(Uri.fromFile(saveFile));
+    private boolean exportTextMsg(File saveDir, ArrayList<Uri> filesToScan) {
+        DayFileExporter<TextMsgEntry> exporter = new DayFileExporter<TextMsgEntry>(saveDir, filesToScan,
+                "TextMsg", "Messages", "text msg") {
+            @Override
+            long getDay(TextMsgEntry entry) {
+                return TrackDateUtil.getDaysSinceEpoch(new Date(entry.date));
             }
-            catch (IOException e) {
-                mReason = "Writing day " + date + " app usage to file failed";
-                return false;
+
+            @Override
+            JSONObject toJSON(TextMsgEntry entry) throws JSONException {
+                return entry.toJSON();
             }
-        }
-        return true;
+        };
+        mDatabase.forEachTextMsg(false, exporter);
+        return exporter.finish();
     }
 
-    private JSONObject appUsageListToJSON(List<AppUsageEntry> entriesList) throws JSONException {
-        JSONObject rootObject = new JSONObject();
-        JSONArray usageArray = new JSONArray();
-        for (AppUsageEntry entry : entriesList) {
-            JSONObject usageObject = entry.toJSON();
-            usageArray.put(usageObject);
+    /**
+     * Writes rows streamed from the database to one JSON file per day, e.g. AppUsage16390.json.
+     * Rows must come ordered by day, so only the rows of one day are in memory at a time.
+     * Files of past days that were exported before are kept as they are; today's file is
+     * written again.
+     * Call finish() after the read to write the last day.
+     */
+    private abstract class DayFileExporter<T> implements RowVisitor<T> {
+        private final File mSaveDir;
+        private final ArrayList<Uri> mFilesToScan;
+        private final String mFilePrefix;
+        private final String mArrayName;
+        private final String mDescription;
+
+        // Day of the rows in mDayRows.
+        private long mDay = Long.MIN_VALUE;
+        // Rows of mDay, or null if mDay is not exported.
+        private JSONArray mDayRows = null;
+        private boolean mFailed = false;
+
+        /**
+         * @param saveDir Directory to write the files to.
+         * @param filesToScan Written files are added to this list.
+         * @param filePrefix Start of the file names, followed by the day.
+         * @param arrayName Name of the JSON array that holds the rows.
+         * @param description What the rows are, for error messages.
+         */
+        DayFileExporter(File saveDir, ArrayList<Uri> filesToScan, String filePrefix, String arrayName,
+                        String description) {
+            mSaveDir = saveDir;
+            mFilesToScan = filesToScan;
+            mFilePrefix = filePrefix;
+            mArrayName = arrayName;
+            mDescription = description;
         }
-        rootObject.put("AppUsage", usageArray);
-        return rootObject;
-    }
 
+        /**
+         * @return The day of a row, in days since epoch.
+         */
+        abstract long getDay(T row);
 
-    private boolean exportSurveyData(File saveDir, ArrayList<Uri> filesToScan) {
+        abstract JSONObject toJSON(T row) throws JSONException;
 
-        // Pull data from database.
-        List<SurveyEntry> allEntries = mDatabase.readSurveyInfo();
-        HashMap<Long, List<SurveyEntry> > entriesByDay = new HashMap<Long, List<SurveyEntry>>();
-
-        for (SurveyEntry entry : allEntries) {
-            long daysSinceEpoch = TrackDateUtil.getDaysSinceEpoch(entry.getDate());
-            if (!entriesByDay.containsKey(daysSinceEpoch)) {
-                entriesByDay.put(daysSinceEpoch, new ArrayList<SurveyEntry>());
+        @Override
+        public boolean visit(T row) {
+            long day = getDay(row);
+            if (day != mDay) {
+                if (!writeDay())
+                    return false;
+                startDay(day);
             }
-            entriesByDay.get(daysSinceEpoch).add(entry);
-        }
+            if (mDayRows == null)
+                return true;
 
-        for (long date : entriesByDay.keySet()) {
-
-            File saveFile = new File(saveDir, "SurveyInfo" + String.valueOf(date) + ".json");
-            if (saveFile.exists()) {
-                if (date == TrackDateUtil.getDaysSinceEpoch() )
-                    Log.d(TAG, "deleting today (" + date + ") survey info file: " + (saveFile.delete() ? "success" : "fail"));
-                else
-                    continue;
-            }
-
-            List<SurveyEntry> oneDayEntries = entriesByDay.get(date);
-            JSONObject rootObject;
             try {
-                rootObject = surveyListToJSON(oneDayEntries);
+                mDayRows.put(toJSON(row));
             }
             catch (JSONException e) {
-                mReason = "Converting day " + date + " survey to JSON failed";
-                return false;
-            }
-
-            try  {
-                FileOutputStream fOut = new FileOutputStream(saveFile);
-                OutputStreamWriter myOutWriter = new OutputStreamWriter(fOut);
-                myOutWriter.write(rootObject.toString());
-                myOutWriter.flush();
-                myOutWriter.close();
-                fOut.close();
-                filesToScan.add(Uri.fromFile(saveFile));
-            }
-            catch (IOException e) {
-                mReason = "Writing day " + date + " survey info to file failed";
-                return false;
+                return fail("Converting day " + mDay + " " + mDescription + " to JSON failed");
             }
+            return true;
         }
-        return true;
-    }
 
-
-    private JSONObject surveyListToJSON(List<SurveyEntry> entriesList) throws JSONException {
-        JSONObject rootObject = new JSONObject();
-        JSONArray usageArray = new JSONArray();
-        for (SurveyEntry entry : entriesList) {
-            JSONObject usageObject = entry.toJSON();
-            usageArray.put(usageObject);
+        /**
+         * Write the last day.
+         * @return True if every day was exported, false if one failed. mReason tells why.
+         */
+        boolean finish() {
+            return writeDay() && !mFailed;
         }
 
-        rootObject.put("SurveyInfo", usageArray);
-        return rootObject;
-    }
+        private void startDay(long day) {
+            mDay = day;
+            mDayRows = null;
 
-    private boolean exportTextMsg(File saveDir, ArrayList<Uri> filesToScan) {
-
-        // Pull data from database.
-        List<TextMsgEntry> allEntries = mDatabase.readTextMsg(false);
-        HashMap<Long, List<TextMsgEntry> > entriesByDay = new HashMap<Long, List<TextMsgEntry>>();
-
-        for (TextMsgEntry entry : allEntries) {
-            long daysSinceEpoch = TrackDateUtil.getDaysSinceEpoch(new Date(entry.date));
-            if (!entriesByDay.containsKey(daysSinceEpoch)) {
-                entriesByDay.put(daysSinceEpoch, new ArrayList<TextMsgEntry>());
-            }
-            entriesByDay.get(daysSinceEpoch).add(entry);
-        }
-
-        for (long date : entriesByDay.keySet()) {
-
-            File saveFile = new File(saveDir, "TextMsg" + String.valueOf(date) + ".json");
+            File saveFile = getFile(day);
             if (saveFile.exists()) {
-                if (date == TrackDateUtil.getDaysSinceEpoch() )
-                    Log.d(TAG, "deleting today (" + date + ") text msg file: " + (saveFile.delete() ? "success" : "fail"));
+                if (day == TrackDateUtil.getDaysSinceEpoch())
+                    Log.d(TAG, "deleting today (" + day + ") " + mDescription + " file: " + (saveFile.delete() ? "success" : "fail"));
                 else
-                    continue;
+                    return;
             }
+            mDayRows = new JSONArray();
+        }
 
-            List<TextMsgEntry> oneDayEntries = entriesByDay.get(date);
-            JSONObject rootObject;
+        private boolean writeDay() {
+            if (mFailed)
+                return false;
+            if (mDayRows == null)
+                return true;
+
+            File saveFile = getFile(mDay);
+            JSONObject rootObject = new JSONObject();
             try {
-                rootObject = textMsgListToJSON(oneDayEntries);
+                rootObject.put(mArrayName, mDayRows);
             }
             catch (JSONException e) {
-                mReason = "Converting day " + date + " text msg to JSON failed";
-                return false;
+                return fail("Converting day " + mDay + " " + mDescription + " to JSON failed");
             }
+            mDayRows = null;
 
             try  {
                 FileOutputStream fOut = new FileOutputStream(saveFile);
@@ -273,24 +263,22 @@ public abstract class ExportDataTask extends AsyncTask<Integer, Integer, Boolean
                 myOutWriter.flush();
                 myOutWriter.close();
                 fOut.close();
-                filesToScan.add(Uri.fromFile(saveFile));
+                mFilesToScan.add(Uri.fromFile(saveFile));
             }
             catch (IOException e) {
-                mReason = "Writing day " + date + " text msg to file failed";
-                return false;
+                return fail("Writing day " + mDay + " " + mDescription + " to file failed");
             }
+            return true;
+        }
+
+        private File getFile(long day) {
+            return new File(mSaveDir, mFilePrefix + String.valueOf(day) + ".json");
         }
-        return true;
-    }
 
-    private JSONObject textMsgListToJSON(List<TextMsgEntry> entriesList) throws JSONException {
-        JSONObject rootObject = new JSONObject();
-        JSONArray usageArray = new JSONArray();
-        for (TextMsgEntry entry : entriesList) {
-            JSONObject usageObject = entry.toJSON();
-            usageArray.put(usageObject);
+        private boolean fail(String reason) {
+            mReason = reason;
+            mFailed = true;
+            return false;
         }
-        rootObject.put("Messages", usageArray);
-        return rootObject;
     }
 }
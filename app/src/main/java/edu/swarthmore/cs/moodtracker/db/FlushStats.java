@@ -0,0 +1,29 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+/**
+ * Result of one batch write of app usage to the database. See TrackDatabase.writeAppUsageBatch().
+ * Used to check that the cost of a flush follows the number of changed rows, not the number of
+ * apps used that day.
+ */
+public class FlushStats {
+    public final boolean Success;
+    public final int UsageRows;
+    public final int SessionRows;
+    // AppInfo rows (names and icons) written, i.e. apps that were new or updated.
+    public final int AppInfoRows;
+    public final long LatencyMs;
+
+    public FlushStats(boolean success, int usageRows, int sessionRows, int appInfoRows, long latencyMs) {
+        Success = success;
+        UsageRows = usageRows;
+        SessionRows = sessionRows;
+        AppInfoRows = appInfoRows;
+        LatencyMs = latencyMs;
+    }
+
+    @Override
+    public String toString() {
+        return (Success ? "ok" : "failed") + ", " + UsageRows + " usage rows, "
+                + SessionRows + " session rows, " + AppInfoRows + " app info rows, " + LatencyMs + " ms";
+    }
+}
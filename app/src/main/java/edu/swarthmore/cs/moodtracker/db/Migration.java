@@ -0,0 +1,42 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One step of the schema of TrackDatabase, from the version before it to Version.
+ * upgrade() runs in the transaction of onUpgrade(), before the database can be used, so it must
+ * only change the schema and never drop tracking data. Work that grows with the amount of data,
+ * like filling a derived table, goes into a Backfill, which Migrator runs in the background.
+ */
+public abstract class Migration {
+    // The schema version this step upgrades to.
+    public final int Version;
+    // What the step does, for the log.
+    public final String Description;
+
+    /**
+     * @param version The schema version this step upgrades to.
+     * @param description What the step does, for the log.
+     */
+    protected Migration(int version, String description) {
+        Version = version;
+        Description = description;
+    }
+
+    /**
+     * Change the schema. Called once, from onUpgrade(), in version order.
+     * @param db The database being upgraded.
+     */
+    public abstract void upgrade(SQLiteDatabase db);
+
+    /**
+     * @return The backfills that fill what upgrade() created. Registered once every step of the
+     * upgrade ran, and run in the background afterwards.
+     */
+    public List<Backfill> getBackfills() {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,204 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+import edu.swarthmore.cs.moodtracker.db.TrackContract.MigrationStateSchema;
+
+/**
+ * Upgrades the schema of TrackDatabase with a list of Migrations, and runs their Backfills.
+ * onUpgrade() only runs the schema changes, which don't depend on the amount of data, and
+ * registers the backfills in the MigrationState table. The backfills then run in the
+ * background, one chunk per transaction, resuming from MigrationState after the process dies.
+ * Until a backfill is done, isPending() tells readers not to rely on what it fills.
+ */
+final class Migrator {
+    public static final String TAG = "Migrator";
+
+    // Pause between chunks, so the tracking thread and the UI get the write lock in between.
+    private static final long CHUNK_PAUSE_MS = 50;
+
+    private final List<Migration> mMigrations;
+    // Every backfill of every migration, by name.
+    private final LinkedHashMap<String, Backfill> mBackfills = new LinkedHashMap<String, Backfill>();
+    // Backfills that are not done, by name. Guarded by itself.
+    private final LinkedHashMap<String, Backfill> mPending = new LinkedHashMap<String, Backfill>();
+    // Progress of the running backfill, for toString().
+    private volatile String mProgress = null;
+
+    /**
+     * @param migrations Every step of the schema, in version order.
+     */
+    Migrator(List<Migration> migrations) {
+        mMigrations = migrations;
+        for (Migration migration : migrations) {
+            for (Backfill backfill : migration.getBackfills()) {
+                mBackfills.put(backfill.Name, backfill);
+            }
+        }
+    }
+
+    /**
+     * Create the MigrationState table. Used by onCreate() and the migration that added it.
+     * @param db The database to create the table in.
+     */
+    static void createStateTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MigrationStateSchema.TABLE_NAME + "("
+                + MigrationStateSchema.COLUMN_NAME + " Text PRIMARY KEY, "
+                + MigrationStateSchema.COLUMN_POSITION + " INTEGER"
+                + ")");
+    }
+
+    /**
+     * Run the migrations from oldVersion to newVersion, then register their backfills.
+     * Called from onUpgrade(), in its transaction.
+     * @param db The database being upgraded.
+     * @param oldVersion The version of the database.
+     * @param newVersion The version to upgrade to.
+     */
+    void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        ArrayList<Backfill> backfills = new ArrayList<Backfill>();
+        for (Migration migration : mMigrations) {
+            if (migration.Version <= oldVersion || migration.Version > newVersion)
+                continue;
+            Log.d(TAG, "Upgrading to version " + migration.Version + ": " + migration.Description);
+            migration.upgrade(db);
+            backfills.addAll(migration.getBackfills());
+        }
+
+        // Only now, because the MigrationState table may have been created by the last step.
+        for (Backfill backfill : backfills) {
+            db.execSQL("INSERT OR REPLACE INTO " + MigrationStateSchema.TABLE_NAME + " ("
+                    + MigrationStateSchema.COLUMN_NAME + ", " + MigrationStateSchema.COLUMN_POSITION
+                    + ") VALUES (?, ?)", new Object[] {backfill.Name, backfill.getStartPosition(db)});
+        }
+    }
+
+    /**
+     * Load which backfills are not done. Called from onOpen().
+     * @param db The opened database.
+     */
+    void loadPending(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT " + MigrationStateSchema.COLUMN_NAME + " FROM "
+                + MigrationStateSchema.TABLE_NAME + " WHERE " + MigrationStateSchema.COLUMN_POSITION + " != ?",
+                new String[] {String.valueOf(Backfill.DONE)});
+        synchronized (mPending) {
+            try {
+                mPending.clear();
+                while (cursor.moveToNext()) {
+                    Backfill backfill = mBackfills.get(cursor.getString(0));
+                    if (backfill != null)
+                        mPending.put(backfill.Name, backfill);
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @param name Name of a backfill.
+     * @return True if the backfill is not done, so what it fills must not be read yet.
+     */
+    boolean isPending(String name) {
+        synchronized (mPending) {
+            return mPending.containsKey(name);
+        }
+    }
+
+    /**
+     * @return True if any backfill is not done.
+     */
+    boolean hasPending() {
+        synchronized (mPending) {
+            return !mPending.isEmpty();
+        }
+    }
+
+    /**
+     * Run every pending backfill to the end. Blocks for as long as that takes, so it must be
+     * called on a background thread. If a chunk fails, the backfill stops and is resumed the
+     * next time this is called.
+     * @param db The database.
+     */
+    void runPending(SQLiteDatabase db) {
+        ArrayList<Backfill> backfills;
+        synchronized (mPending) {
+            backfills = new ArrayList<Backfill>(mPending.values());
+        }
+
+        for (Backfill backfill : backfills) {
+            long startTime = SystemClock.elapsedRealtime();
+            int chunks = 0;
+            try {
+                long position = readPosition(db, backfill.Name);
+                while (position != Backfill.DONE) {
+                    mProgress = String.format(Locale.US, "%s: %.0f%%", backfill.Name,
+                            100 * backfill.getProgress(db, position));
+                    position = runChunk(db, backfill, position);
+                    chunks++;
+                    SystemClock.sleep(CHUNK_PAUSE_MS);
+                }
+            }
+            catch (SQLiteException e) {
+                Log.e(TAG, "runPending(): " + backfill.Name + " failed, " + e.toString());
+                mProgress = backfill.Name + ": failed, resumes on next start";
+                return;
+            }
+
+            synchronized (mPending) {
+                mPending.remove(backfill.Name);
+            }
+            Log.d(TAG, backfill.Name + " done in " + chunks + " chunks, "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        }
+        mProgress = null;
+    }
+
+    /**
+     * Run one chunk and save where the next one starts, in one transaction.
+     * @return Where the next chunk starts, or Backfill.DONE.
+     */
+    private static long runChunk(SQLiteDatabase db, Backfill backfill, long position) {
+        db.beginTransaction();
+        try {
+            long next = backfill.runChunk(db, position);
+            db.execSQL("UPDATE " + MigrationStateSchema.TABLE_NAME + " SET " + MigrationStateSchema.COLUMN_POSITION
+                    + " = ? WHERE " + MigrationStateSchema.COLUMN_NAME + " = ?", new Object[] {next, backfill.Name});
+            db.setTransactionSuccessful();
+            return next;
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
+    private static long readPosition(SQLiteDatabase db, String name) {
+        Cursor cursor = db.rawQuery("SELECT " + MigrationStateSchema.COLUMN_POSITION + " FROM "
+                + MigrationStateSchema.TABLE_NAME + " WHERE " + MigrationStateSchema.COLUMN_NAME + " = ?",
+                new String[] {name});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : Backfill.DONE;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        String progress = mProgress;
+        if (progress != null)
+            return "Backfills: " + progress;
+        return hasPending() ? "Backfills: pending" : "Backfills: none pending";
+    }
+}
@@ -0,0 +1,82 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * A read query of TrackDatabase with every value bound as an argument, never inlined.
+ * SQLite keeps the statements it compiled in a cache per connection, keyed by their SQL text.
+ * The text of a PreparedQuery doesn't depend on its arguments, so it is compiled once per
+ * connection and reused by every later call, e.g. each refresh of the app usage list.
+ * TrackDatabase sizes that cache in onOpen().
+ * Arguments are bound as strings, which is all rawQuery() takes. SQLite turns them back into
+ * numbers when they are compared with INTEGER columns, so indexes are still used.
+ */
+final class PreparedQuery {
+    private final String mSql;
+    private final int mArgCount;
+
+    /**
+     * @param sql The query, with a ? for every argument. Must not contain a literal "?".
+     */
+    PreparedQuery(String sql) {
+        mSql = sql;
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?')
+                count++;
+        }
+        mArgCount = count;
+    }
+
+    String getSql() {
+        return mSql;
+    }
+
+    int getArgCount() {
+        return mArgCount;
+    }
+
+    /**
+     * Run the query.
+     * @param db The database to query.
+     * @param args One value per ?, in order. Converted with String.valueOf().
+     * @return The cursor. The caller must close it, e.g. with RowMapper.forEach().
+     */
+    Cursor query(SQLiteDatabase db, Object... args) {
+        return db.rawQuery(mSql, toStrings(args));
+    }
+
+    /**
+     * Run a query whose result is a single number, e.g. SELECT MAX(date).
+     * @param db The database to query.
+     * @param args One value per ?, in order. Converted with String.valueOf().
+     * @return The number in the first column of the first row.
+     */
+    long queryForLong(SQLiteDatabase db, Object... args) {
+        SQLiteStatement statement = db.compileStatement(mSql);
+        try {
+            statement.bindAllArgsAsStrings(toStrings(args));
+            return statement.simpleQueryForLong();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Convert arguments to the strings bound to the query.
+     * @throws IllegalArgumentException If the number of arguments doesn't match the query.
+     */
+    String[] toStrings(Object... args) {
+        if (args.length != mArgCount)
+            throw new IllegalArgumentException("Query takes " + mArgCount + " arguments, got " + args.length);
+
+        String[] strings = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            strings[i] = String.valueOf(args[i]);
+        }
+        return strings;
+    }
+}
@@ -101,8 +101,9 @@ public abstract class QuerySentimentTask extends AsyncTask<Integer, Integer, Boo
             }
         }
 
-        for (TextMsgEntry entry : negativeEntries) {
-            mDatabase.writeTextMsgRecord(entry);
+        if (mDatabase.writeTextMsgBatch(negativeEntries) != negativeEntries.size()) {
+            mError = "Cannot save sentiment scores to database";
+            return false;
         }
 
         return true;
@@ -2,6 +2,7 @@ package edu.swarthmore.cs.moodtracker.db;
 
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -9,7 +10,9 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 
+import edu.swarthmore.cs.moodtracker.services.AppUsageSnapshot;
 import edu.swarthmore.cs.moodtracker.services.TrackService;
+import edu.swarthmore.cs.moodtracker.util.AppIconCache;
 import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
 
 /**
@@ -22,8 +25,12 @@ import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
  */
 public abstract class ReadAppUsageTask extends AsyncTask<Long, Integer, List<AppUsageEntry> > {
     private TrackDatabase mDatabase;
+    // Icons of the result are loaded into this cache. Null if the result is not shown.
+    private AppIconCache mIconCache;
     private TrackService mService;
     private long mCurrentDate = TrackDateUtil.getDaysSinceEpoch();
+    // Version of the service snapshot the result was computed from, or -1.
+    private volatile long mSnapshotVersion = -1;
 
     /**
      * Construct a ReadAppUsageTask that read app usages from database.
@@ -31,17 +38,20 @@ public abstract class ReadAppUsageTask extends AsyncTask<Long, Integer, List<App
      */
     public ReadAppUsageTask(Context context) {
         mDatabase = TrackDatabase.getInstance(context);
+        mIconCache = null;
         mService = null;
     }
 
     /**
      * Construct a ReadAppUsageTask that reads today's app usage from TrackService,
-     * and previous day's app usage from database.
+     * and previous day's app usage from database. The icons of the result are loaded into
+     * AppIconCache in the background, so the list can show them right away.
      * @param context Used to get database instance.
      * @param service TrackService instance that provides today's updated app usage.
      */
     public ReadAppUsageTask(Context context, TrackService service) {
         mDatabase = TrackDatabase.getInstance(context);
+        mIconCache = AppIconCache.getInstance(context);
         mService = service;
     }
 
@@ -54,38 +64,66 @@ public abstract class ReadAppUsageTask extends AsyncTask<Long, Integer, List<App
         long startDate = params[0], endDate = params[1];
         int displayLimit = (params.length > 2 && params[2] != null) ? params[2].intValue() : -1;
 
-        // Query db and service to get app usage.
-        ArrayList<AppUsageEntry> dbResult = mDatabase.readAppUsage(startDate, endDate);
-        List<AppUsageEntry> serviceResult = (mService != null) ? mService.getTodayAppUsage() : null;
-
-        // If service doesn't have any today's app usage yet, get today's app usage from DB.
-        // This could happen when service itself reads from DB.
-        boolean getTodayUsageFromDB = (serviceResult == null);
+        // Get today's usage from the service if it has loaded it. Otherwise the service is still
+        // reading it from DB (or this is the service), and today is read from DB as well.
+        AppUsageSnapshot snapshot = (mService != null) ? mService.getAppUsageSnapshot() : null;
+        List<AppUsageEntry> resultList;
+        if (snapshot != null)
+            resultList = readWithSnapshot(snapshot, startDate, endDate, displayLimit);
+        else
+            resultList = mDatabase.readAppUsageTotals(startDate, endDate, displayLimit);
+
+        // Load the icons that will be shown here, not on the main thread.
+        if (mIconCache != null)
+            mIconCache.warm(resultList);
+        return resultList;
+    }
 
-        // Sum usage time for every app.
+    /**
+     * Sum previous days from database and today's usage from a service snapshot.
+     * @param snapshot The snapshot of today's usage.
+     * @param startDate Earliest date to include, or -1.
+     * @param endDate Latest date to include, or -1.
+     * @param displayLimit Maximum number of apps, or -1 for all.
+     * @return The entries of the most used apps, sorted by usage time.
+     */
+    private List<AppUsageEntry> readWithSnapshot(AppUsageSnapshot snapshot, long startDate, long endDate,
+                                                 int displayLimit) {
+        mSnapshotVersion = snapshot.getVersion();
+        List<AppUsageEntry> todayResult = (endDate < 0 || endDate >= mCurrentDate)
+                ? snapshot.toEntryList(SystemClock.elapsedRealtime())
+                : Collections.<AppUsageEntry>emptyList();
+
+        // Sum previous days in SQL. An app outside the top displayLimit of previous days can only
+        // make it into the result with today's usage, so only today's apps are summed on top.
+        long dbEndDate = (endDate < 0 || endDate >= mCurrentDate) ? mCurrentDate - 1 : endDate;
         HashMap<String, AppUsageEntry> resultMap = new HashMap<String, AppUsageEntry>();
-
-        for (AppUsageEntry entry:dbResult){
-            // If we want to get today's usage from service, ignore today's entries.
-            if (!getTodayUsageFromDB && entry.DaysSinceEpoch >= mCurrentDate)
-                continue;
-
-            if (resultMap.containsKey(entry.PackageName))
-                resultMap.get(entry.PackageName).UsageTimeSec += entry.UsageTimeSec;
-            else
+        if (startDate <= dbEndDate) {
+            for (AppUsageEntry entry : mDatabase.readAppUsageTotals(startDate, dbEndDate, displayLimit)) {
                 resultMap.put(entry.PackageName, entry);
-        }
+            }
 
-        if (serviceResult != null) {
-            for (AppUsageEntry entry:serviceResult) {
-                if (resultMap.containsKey(entry.PackageName))
-                    resultMap.get(entry.PackageName).UsageTimeSec += entry.UsageTimeSec;
-                else
+            ArrayList<String> todayPackages = new ArrayList<String>(todayResult.size());
+            for (AppUsageEntry entry : todayResult) {
+                if (!resultMap.containsKey(entry.PackageName))
+                    todayPackages.add(entry.PackageName);
+            }
+            if (!todayPackages.isEmpty()) {
+                for (AppUsageEntry entry : mDatabase.readAppUsageTotals(startDate, dbEndDate, todayPackages)) {
                     resultMap.put(entry.PackageName, entry);
+                }
             }
         }
 
-        // Get a list and return it.
+        for (AppUsageEntry entry : todayResult) {
+            AppUsageEntry dbEntry = resultMap.get(entry.PackageName);
+            if (dbEntry != null)
+                dbEntry.UsageTimeSec += entry.UsageTimeSec;
+            else
+                resultMap.put(entry.PackageName, entry);
+        }
+
+        // Get a list and return it. Only the candidates for the top displayLimit are sorted here.
         List<AppUsageEntry> resultList = new ArrayList<AppUsageEntry>(resultMap.values());
         Collections.sort(resultList, new AppUsageEntryComparator());
         if (displayLimit >= 0 && displayLimit < resultList.size()) {
@@ -99,6 +137,15 @@ public abstract class ReadAppUsageTask extends AsyncTask<Long, Integer, List<App
         onFinish(result);
     }
 
+    /**
+     * Get the version of the TrackService snapshot that today's usage was read from.
+     * Valid in onFinish().
+     * @return The snapshot version, or -1 if today's usage was read from database.
+     */
+    public long getSnapshotVersion() {
+        return mSnapshotVersion;
+    }
+
     /**
      * Override this method to get result of query.
      * @param result A list of sorted AppUsageEntries. DisplayLimit applied.
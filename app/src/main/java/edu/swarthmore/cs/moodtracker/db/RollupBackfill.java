@@ -0,0 +1,104 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageMonthlySchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageSchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageWeeklySchema;
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Fills a rollup table of AppUsage, a few weeks or months per chunk, oldest first.
+ * Each chunk sums the AppUsage rows of its periods and replaces their rollup rows, so it is
+ * correct whatever writeAppUsageBatch() added to those rows before. Rows it added to periods of
+ * earlier chunks are already correct. Positions are days since epoch.
+ * Until a rollup is filled, TrackDatabase doesn't read it.
+ */
+public class RollupBackfill extends Backfill {
+    public static final String WEEKLY = "AppUsageWeekly rollup";
+    public static final String MONTHLY = "AppUsageMonthly rollup";
+
+    private static final int WEEKS_PER_CHUNK = 8;
+    private static final int MONTHS_PER_CHUNK = 2;
+
+    private final boolean mMonthly;
+    private final String mTable;
+    private final String mStartDateColumn;
+    // SQL of the start of the period of AppUsage.date. The SQL date math matches
+    // TrackDateUtil.getWeekStart() and getMonthStart(): 1970/1/1 was a Thursday, and 2440587.5
+    // is its Julian day.
+    private final String mPeriodStart;
+
+    /**
+     * @return The backfill of AppUsageWeekly.
+     */
+    public static RollupBackfill weekly() {
+        return new RollupBackfill(WEEKLY, false, AppUsageWeeklySchema.TABLE_NAME,
+                AppUsageWeeklySchema.COLUMN_START_DATE,
+                "((" + AppUsageSchema.COLUMN_DATE + " + 3) / 7 * 7 - 3)");
+    }
+
+    /**
+     * @return The backfill of AppUsageMonthly.
+     */
+    public static RollupBackfill monthly() {
+        return new RollupBackfill(MONTHLY, true, AppUsageMonthlySchema.TABLE_NAME,
+                AppUsageMonthlySchema.COLUMN_START_DATE,
+                "CAST(julianday(date(" + AppUsageSchema.COLUMN_DATE + " * 86400, 'unixepoch', 'start of month'))"
+                        + " - 2440587.5 AS INTEGER)");
+    }
+
+    private RollupBackfill(String name, boolean monthly, String table, String startDateColumn, String periodStart) {
+        super(name);
+        mMonthly = monthly;
+        mTable = table;
+        mStartDateColumn = startDateColumn;
+        mPeriodStart = periodStart;
+    }
+
+    @Override
+    public long getStartPosition(SQLiteDatabase db) {
+        if (TrackDatabase.MAX_DATE_QUERY.queryForLong(db) <= 0)
+            return DONE;
+        return getPeriodStart(TrackDatabase.MIN_DATE_QUERY.queryForLong(db));
+    }
+
+    @Override
+    public long runChunk(SQLiteDatabase db, long position) {
+        long lastDate = TrackDatabase.MAX_DATE_QUERY.queryForLong(db);
+        if (position > lastDate)
+            return DONE;
+
+        long end = position;
+        for (int i = 0; i < (mMonthly ? MONTHS_PER_CHUNK : WEEKS_PER_CHUNK); i++) {
+            end = mMonthly ? TrackDateUtil.getNextMonthStart(end) : end + 7;
+        }
+
+        // Both searches use an index: the primary key of the rollup, and the date index.
+        db.execSQL("DELETE FROM " + mTable + " WHERE " + mStartDateColumn + " >= ? AND "
+                + mStartDateColumn + " < ?", new Object[] {position, end});
+        db.execSQL("INSERT INTO " + mTable + " (" + mStartDateColumn + ", "
+                + AppUsageSchema.COLUMN_PACKAGE + ", " + AppUsageSchema.COLUMN_USAGE_SEC + ") SELECT "
+                + mPeriodStart + ", " + AppUsageSchema.COLUMN_PACKAGE + ", SUM(" + AppUsageSchema.COLUMN_USAGE_SEC
+                + ") FROM " + AppUsageSchema.TABLE_NAME + " WHERE " + AppUsageSchema.COLUMN_DATE + " >= ? AND "
+                + AppUsageSchema.COLUMN_DATE + " < ? GROUP BY 1, 2", new Object[] {position, end});
+
+        // Periods after the last day stored are kept up to date by writeAppUsageBatch().
+        return (end > lastDate) ? DONE : end;
+    }
+
+    @Override
+    public float getProgress(SQLiteDatabase db, long position) {
+        if (position == DONE)
+            return 1;
+        long first = getPeriodStart(TrackDatabase.MIN_DATE_QUERY.queryForLong(db));
+        long last = TrackDatabase.MAX_DATE_QUERY.queryForLong(db);
+        if (last < first)
+            return 1;
+        return Math.max(0, Math.min(1, (float) (position - first) / (last + 1 - first)));
+    }
+
+    private long getPeriodStart(long day) {
+        return mMonthly ? TrackDateUtil.getMonthStart(day) : TrackDateUtil.getWeekStart(day);
+    }
+}
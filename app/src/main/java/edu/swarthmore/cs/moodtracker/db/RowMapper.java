@@ -0,0 +1,66 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Turns the rows of a cursor into objects, e.g. AppUsageEntries.
+ * The indexes of the columns are looked up once per cursor, in resolve(), and kept in fields of
+ * the mapper, so mapping a row is only reads by index. A mapper holds the plan of one cursor at
+ * a time, so it must not be shared between threads.
+ * @param <T> The type of the rows.
+ */
+public abstract class RowMapper<T> {
+    public static final String TAG = "RowMapper";
+
+    /**
+     * Look up the indexes of the columns this mapper reads. Called once per cursor, before
+     * the first row is mapped.
+     * @param cursor The cursor that is about to be mapped.
+     */
+    protected abstract void resolve(Cursor cursor);
+
+    /**
+     * Map the current row of the cursor. Must not move the cursor.
+     * @param cursor The cursor passed to resolve().
+     * @return The object of this row.
+     */
+    protected abstract T map(Cursor cursor);
+
+    /**
+     * Map every row of a cursor, from its current position on, and close it.
+     * The cursor is closed before this method returns, also when the visitor stops early or
+     * throws.
+     * @param cursor The cursor, usually just returned by a query.
+     * @param visitor Called with each mapped row. Return false from it to stop.
+     * @return The number of rows visited.
+     */
+    public int forEach(Cursor cursor, RowVisitor<T> visitor) {
+        int rows = 0;
+        try {
+            resolve(cursor);
+            while (cursor.moveToNext()) {
+                rows++;
+                if (!visitor.visit(map(cursor)))
+                    break;
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Look up the index of a column, logging it if the cursor doesn't have it.
+     * @param cursor The cursor being resolved.
+     * @param column Name of the column.
+     * @return The index of the column, or -1 if the cursor doesn't have it.
+     */
+    protected int getColumnIndex(Cursor cursor, String column) {
+        int index = cursor.getColumnIndex(column);
+        if (index < 0)
+            Log.e(TAG, getClass().getSimpleName() + ": column " + column + " not found");
+        return index;
+    }
+}
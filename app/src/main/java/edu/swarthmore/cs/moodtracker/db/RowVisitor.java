@@ -0,0 +1,18 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+/**
+ * Callback of the streaming reads of TrackDatabase, e.g. forEachAppUsage().
+ * Rows are handed over one at a time while the cursor is open, so only the row being visited
+ * has to be in memory. The cursor is closed before the read returns, also when the visitor
+ * stops early or throws.
+ * @param <T> The type of the rows, e.g. AppUsageEntry.
+ */
+public interface RowVisitor<T> {
+
+    /**
+     * Visit one row. Called on the thread of the read, in the order of the read.
+     * @param row The row. Not used by the database afterwards, so it can be kept.
+     * @return True to continue with the next row, false to stop the read.
+     */
+    boolean visit(T row);
+}
@@ -6,31 +6,31 @@ import android.os.AsyncTask;
 import java.util.Collection;
 
 /**
- * Async task that save app usage information to database.
- * Usage: new WriteAppusageTask(context, entries) {
- *            override onFinish()
+ * Async task that save app usage information and app sessions to database, in one transaction.
+ * Usage: new WriteAppusageTask(context, entries, sessions) {
+ *            override onFinish(stats)
  *        }.execute()
  */
-public abstract class SaveAppUsageTask extends AsyncTask<Integer, Integer, Boolean > {
+public abstract class SaveAppUsageTask extends AsyncTask<Integer, Integer, FlushStats> {
     private TrackDatabase mDatabase;
     private Collection<AppUsageEntry> mEntries;
+    private Collection<AppSession> mSessions;
 
     /**
      * Construct a SaveAppUsage task that writes app usage to database.
      * @param context Used to get database instance.
      * @param entries App usage entries to save.
+     * @param sessions App sessions to save.
      */
-    public SaveAppUsageTask(Context context, Collection<AppUsageEntry> entries) {
+    public SaveAppUsageTask(Context context, Collection<AppUsageEntry> entries, Collection<AppSession> sessions) {
         mDatabase = TrackDatabase.getInstance(context);
         mEntries = entries;
+        mSessions = sessions;
     }
 
     @Override
-    protected Boolean doInBackground(Integer... params) {
-        for (AppUsageEntry entry : mEntries) {
-            mDatabase.writeAppUsage(entry);
-        }
-        return true;
+    protected FlushStats doInBackground(Integer... params) {
+        return mDatabase.writeAppUsageBatch(mEntries, mSessions);
     }
 
     @Override
@@ -39,12 +39,13 @@ public abstract class SaveAppUsageTask extends AsyncTask<Integer, Integer, Boole
     }
 
     @Override
-    protected void onPostExecute(Boolean result) {
-        onFinish();
+    protected void onPostExecute(FlushStats result) {
+        onFinish(result);
     }
 
     /**
      * Override this method to get result of query.
+     * @param stats Whether the save succeeded, how many rows were written and how long it took.
      */
-    public abstract void onFinish();
+    public abstract void onFinish(FlushStats stats);
 }
@@ -23,30 +23,6 @@ public class SurveyEntry {
         mQuestions = questions;
     }
 
-    public SurveyEntry(Cursor cursor) {
-        if (cursor.isAfterLast()){
-            return;
-        }
-        int index = cursor.getColumnIndex(TrackContract.SurveyInfoSchema.COLUMN_DATE);
-        if (index >= 0) {
-            mDate = new Date(cursor.getLong(index));
-        }
-
-        index = cursor.getColumnIndex(TrackContract.SurveyInfoSchema.COLUMN_QUESTIONS_ANSWERS);
-        if (index >= 0) {
-            String encodedQuestions = cursor.getString(index);
-            String[] encodedQuestionsList = encodedQuestions.split(QUESTIONS_DELIM);
-
-            mQuestions = new ArrayList<MoodRatingQuestion>(10);
-            for (String encodedQuestion : encodedQuestionsList) {
-                MoodRatingQuestion question = MoodRatingQuestion.questionFromDBString(encodedQuestion);
-                mQuestions.add(question);
-            }
-        }
-
-        cursor.moveToNext();
-    }
-
     public Date getDate() {
         return mDate;
     }
@@ -69,4 +45,33 @@ public class SurveyEntry {
 
     }
 
+    /**
+     * Maps rows of the SurveyInfo table to SurveyEntries.
+     */
+    public static class Mapper extends RowMapper<SurveyEntry> {
+        private int mDateIndex, mQuestionsIndex;
+
+        @Override
+        protected void resolve(Cursor cursor) {
+            mDateIndex = getColumnIndex(cursor, TrackContract.SurveyInfoSchema.COLUMN_DATE);
+            mQuestionsIndex = getColumnIndex(cursor, TrackContract.SurveyInfoSchema.COLUMN_QUESTIONS_ANSWERS);
+        }
+
+        @Override
+        protected SurveyEntry map(Cursor cursor) {
+            Date date = null;
+            if (mDateIndex >= 0)
+                date = new Date(cursor.getLong(mDateIndex));
+
+            List<MoodRatingQuestion> questions = null;
+            if (mQuestionsIndex >= 0) {
+                String[] encodedQuestionsList = cursor.getString(mQuestionsIndex).split(QUESTIONS_DELIM);
+                questions = new ArrayList<MoodRatingQuestion>(10);
+                for (String encodedQuestion : encodedQuestionsList) {
+                    questions.add(MoodRatingQuestion.questionFromDBString(encodedQuestion));
+                }
+            }
+            return new SurveyEntry(date, questions);
+        }
+    }
 }
@@ -34,24 +34,6 @@ public class TextMsgEntry {
         this.negative = negative;
     }
 
-    public TextMsgEntry (Cursor cursor) {
-        // Keep default values if cursor is already finished reading.
-        if (cursor.isAfterLast()) {
-            return;
-        }
-        this.id = cursor.getInt(cursor.getColumnIndex(TextMsgInfoSchema.COLUMN_ID));
-        this.date = cursor.getLong(cursor.getColumnIndex(TextMsgInfoSchema.COLUMN_DATE));
-        this.sender = cursor.getString(cursor.getColumnIndex(TextMsgInfoSchema.COLUMN_SENDER));
-        this.receiver = cursor.getString(cursor.getColumnIndex(TextMsgInfoSchema.COLUMN_RECEIVER));
-        this.type = cursor.getInt(cursor.getColumnIndex(TextMsgInfoSchema.COLUMN_TYPE));
-        this.message = cursor.getString(cursor.getColumnIndex(TextMsgInfoSchema.COLUMN_MESSAGE));
-        this.neutral = cursor.getDouble(cursor.getColumnIndex(TextMsgInfoSchema.COLUMN_NEUTRAL));
-        this.positive = cursor.getDouble(cursor.getColumnIndex(TextMsgInfoSchema.COLUMN_POS));
-        this.negative = cursor.getDouble(cursor.getColumnIndex(TextMsgInfoSchema.COLUMN_NEG));
-
-        cursor.moveToNext();
-    }
-
     /**
      * Converts class to a JSON object. Used for exporting data.
      * @return The JSON representation of this class.
@@ -69,4 +51,34 @@ public class TextMsgEntry {
         jsonObj.put("negative", this.negative);
         return jsonObj;
     }
+
+    /**
+     * Maps rows of the TextMsgInfo table to TextMsgEntries.
+     */
+    public static class Mapper extends RowMapper<TextMsgEntry> {
+        private int mIdIndex, mDateIndex, mSenderIndex, mReceiverIndex, mTypeIndex, mMessageIndex;
+        private int mNeutralIndex, mPositiveIndex, mNegativeIndex;
+
+        @Override
+        protected void resolve(Cursor cursor) {
+            mIdIndex = getColumnIndex(cursor, TextMsgInfoSchema.COLUMN_ID);
+            mDateIndex = getColumnIndex(cursor, TextMsgInfoSchema.COLUMN_DATE);
+            mSenderIndex = getColumnIndex(cursor, TextMsgInfoSchema.COLUMN_SENDER);
+            mReceiverIndex = getColumnIndex(cursor, TextMsgInfoSchema.COLUMN_RECEIVER);
+            mTypeIndex = getColumnIndex(cursor, TextMsgInfoSchema.COLUMN_TYPE);
+            mMessageIndex = getColumnIndex(cursor, TextMsgInfoSchema.COLUMN_MESSAGE);
+            mNeutralIndex = getColumnIndex(cursor, TextMsgInfoSchema.COLUMN_NEUTRAL);
+            mPositiveIndex = getColumnIndex(cursor, TextMsgInfoSchema.COLUMN_POS);
+            mNegativeIndex = getColumnIndex(cursor, TextMsgInfoSchema.COLUMN_NEG);
+        }
+
+        @Override
+        protected TextMsgEntry map(Cursor cursor) {
+            return new TextMsgEntry(cursor.getInt(mIdIndex), cursor.getLong(mDateIndex),
+                    cursor.getString(mSenderIndex), cursor.getString(mReceiverIndex),
+                    cursor.getInt(mTypeIndex), cursor.getString(mMessageIndex),
+                    cursor.getDouble(mNeutralIndex), cursor.getDouble(mPositiveIndex),
+                    cursor.getDouble(mNegativeIndex));
+        }
+    }
 }
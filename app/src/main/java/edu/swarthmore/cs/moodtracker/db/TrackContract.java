@@ -8,7 +8,7 @@ import android.provider.BaseColumns;
  */
 public class TrackContract {
     public static final String DATABASE_NAME = "TrackDatabase";
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 7;
 
     // To prevent someone from accidentally instantiating the contract class,
     // give it an empty constructor.
@@ -20,6 +20,36 @@ public class TrackContract {
         public static final String COLUMN_PACKAGE = "package";
         public static final String COLUMN_USAGE_SEC = "usage_sec";
         public static final String COLUMN_DATE = "date";
+        // Index for date range queries. The primary key starts with the package.
+        public static final String INDEX_DATE = "AppUsage_date_index";
+    }
+
+    /* Inner class that defines the weekly app usage rollup table schema. One row per package per
+     * ISO week, with the sum of the AppUsage rows of that week. */
+    public static abstract class AppUsageWeeklySchema implements BaseColumns {
+        public static final String TABLE_NAME = "AppUsageWeekly";
+        public static final String COLUMN_PACKAGE = "package";
+        // Monday of the week, in days since epoch.
+        public static final String COLUMN_START_DATE = "start_date";
+        public static final String COLUMN_USAGE_SEC = "usage_sec";
+    }
+
+    /* Inner class that defines the monthly app usage rollup table schema. One row per package per
+     * month, with the sum of the AppUsage rows of that month. */
+    public static abstract class AppUsageMonthlySchema implements BaseColumns {
+        public static final String TABLE_NAME = "AppUsageMonthly";
+        public static final String COLUMN_PACKAGE = "package";
+        // First day of the month, in days since epoch.
+        public static final String COLUMN_START_DATE = "start_date";
+        public static final String COLUMN_USAGE_SEC = "usage_sec";
+    }
+
+    /* Inner class that defines the app session table schema */
+    public static abstract class AppSessionSchema implements BaseColumns {
+        public static final String TABLE_NAME = "AppSession";
+        public static final String COLUMN_PACKAGE = "package";
+        public static final String COLUMN_START_MS = "start_ms";
+        public static final String COLUMN_END_MS = "end_ms";
     }
 
     /* Inner class that defines the app info table schema */
@@ -27,7 +57,20 @@ public class TrackContract {
         public static final String TABLE_NAME = "AppInfo";
         public static final String COLUMN_PACKAGE = "package";
         public static final String COLUMN_APP_NAME = "app_name";
+        // Only in databases created before version 4, and always NULL since. See COLUMN_ICON_HASH.
         public static final String COLUMN_APP_ICON = "app_icon";
+        public static final String COLUMN_VERSION_CODE = "version_code";
+        // Hash of the icon in the AppIconStore.
+        public static final String COLUMN_ICON_HASH = "icon_hash";
+    }
+
+    /* Inner class that defines the migration state table schema. One row per backfill, so a
+     * backfill that was interrupted resumes where it stopped. See Migrator. */
+    public static abstract class MigrationStateSchema implements BaseColumns {
+        public static final String TABLE_NAME = "MigrationState";
+        public static final String COLUMN_NAME = "name";
+        // Where the next chunk starts, or Backfill.DONE.
+        public static final String COLUMN_POSITION = "position";
     }
 
     /* Inner class that defines the survey answers table schema*/
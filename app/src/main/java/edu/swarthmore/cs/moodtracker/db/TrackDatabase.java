@@ -4,36 +4,78 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import edu.swarthmore.cs.moodtracker.db.TrackContract.AppInfoSchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppSessionSchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageMonthlySchema;
 import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageSchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageWeeklySchema;
 import edu.swarthmore.cs.moodtracker.db.TrackContract.SurveyInfoSchema;
 import edu.swarthmore.cs.moodtracker.db.TrackContract.TextMsgInfoSchema;
+import edu.swarthmore.cs.moodtracker.util.AppIconCache;
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
 
 /**
  * Created by Peng on 10/19/2014.
  * Local SQLite Database that stores all tracking information.
  * Provides permanent storage, i.e. information is not lost when activity and service stop.
+ * The one instance keeps its connection open for the life of the process, in write-ahead logging
+ * mode, so the tracking thread can write while the UI reads. Methods must not close the database;
+ * closing it on one thread would kill cursors in use on another.
  */
 public class TrackDatabase extends SQLiteOpenHelper {
     private static final String TAG = "TrackDatabase";
 
+    // Maximum number of package names bound to one query, after padding. A power of two, see
+    // readAppUsageTotalsChunk(). SQLite allows 999 arguments per query, and the totals query
+    // also binds the end date and two dates per range, so this leaves plenty of room.
+    private static final int MAX_QUERY_ARGS = 256;
+    // Compiled statements cached per connection. Room for every read query, including the
+    // shapes of the totals query, and the writes. Android allows 100, the default is 25.
+    private static final int SQL_CACHE_SIZE = 64;
+
     // Private factory instance.
     private static TrackDatabase sInstance = null;
 
     // Application context of this database.
     private Context mContext = null;
 
+    // Where app icons are stored. AppInfo only keeps their hashes.
+    private final AppIconStore mIconStore;
+
+    // Runs the schema migrations and their backfills.
+    private final Migrator mMigrator;
+    // Thread that runs the pending backfills, or null if not started yet.
+    private Thread mBackfillThread = null;
+
+    // Version code stored in AppInfo for each package, so saves only encode icons of apps that
+    // are new or were updated. Loaded on the first save. Guarded by itself.
+    private final HashMap<String, Integer> mAppVersions = new HashMap<String, Integer>();
+    private boolean mAppVersionsLoaded = false;
+
     /**
      * Static factory method to create a TrackDatabase instance or retrieve the existing instance
      * @param context The context of the activity creating the database.
      * @return The TrackDatabase instance
      */
-    public static TrackDatabase getInstance(Context context) {
+    public static synchronized TrackDatabase getInstance(Context context) {
         // Use the application context, which will ensure that you
         // don't accidentally leak an Activity's context.
         // See this article for more information: http://bit.ly/6LRzfx
@@ -49,8 +91,34 @@ public class TrackDatabase extends SQLiteOpenHelper {
      * @param context The application context this database lives in
      */
     private TrackDatabase(Context context) {
-        super(context, TrackContract.DATABASE_NAME, null, TrackContract.DATABASE_VERSION);
+        this(context, TrackContract.DATABASE_NAME);
+    }
+
+    /**
+     * Construct a database with another file than the app's, so tests don't touch tracking data.
+     * @param context The context this database lives in.
+     * @param name Name of the database file, or null for an in-memory database.
+     */
+    TrackDatabase(Context context, String name) {
+        super(context, name, null, TrackContract.DATABASE_VERSION);
         mContext = context;
+        mIconStore = new AppIconStore(context);
+        mMigrator = new Migrator(buildMigrations());
+
+        // From API 16 on, the helper turns write-ahead logging on whenever it opens the database.
+        // Older versions turn it on in onOpen().
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly())
+            db.enableWriteAheadLogging();
+        // Read queries are PreparedQueries, so they hit this cache after their first call.
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+        mMigrator.loadPending(db);
     }
 
 
@@ -64,6 +132,8 @@ public class TrackDatabase extends SQLiteOpenHelper {
                 + "PRIMARY KEY (" + AppUsageSchema.COLUMN_PACKAGE + ", " + AppUsageSchema.COLUMN_DATE + ")"
                 + ")";
         db.execSQL(CREATE_APP_USAGE_TABLE);
+        createAppUsageDateIndex(db);
+        createRollupTables(db);
 
         // Create the AppInfo Table.
         // We don't store AppName and Icon in AppUsage Table, because there might be multiple rows
@@ -71,10 +141,14 @@ public class TrackDatabase extends SQLiteOpenHelper {
         String CREATE_APP_INFO_TABLE = "CREATE TABLE " + AppInfoSchema.TABLE_NAME + "("
                 + AppInfoSchema.COLUMN_PACKAGE + " Text PRIMARY KEY, "
                 + AppInfoSchema.COLUMN_APP_NAME + " Text, "
-                + AppInfoSchema.COLUMN_APP_ICON + " BLOB"
+                + AppInfoSchema.COLUMN_VERSION_CODE + " INTEGER DEFAULT -1, "
+                + AppInfoSchema.COLUMN_ICON_HASH + " Text"
                 + ")";
         db.execSQL(CREATE_APP_INFO_TABLE);
 
+        // Create the AppSession Table. AppUsage only keeps daily totals, sessions keep the
+        // intra-day structure (when each app was in foreground).
+        createAppSessionTable(db);
 
         String CREATE_SURVEY_INFO_TABLE = "CREATE TABLE " + SurveyInfoSchema.TABLE_NAME + "("
                 + SurveyInfoSchema.COLUMN_DATE + " DECIMAL PRIMARY KEY, "
@@ -96,118 +170,744 @@ public class TrackDatabase extends SQLiteOpenHelper {
                 + "PRIMARY KEY (" + TextMsgInfoSchema.COLUMN_ID + ", " + TextMsgInfoSchema.COLUMN_DATE + ")"
                 + ")";
         db.execSQL(CREATE_TEXT_MSG_TABLE);
+
+        // A new database has nothing to backfill, but later migrations may.
+        Migrator.createStateTable(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Drop older table if existed
-        db.execSQL("DROP TABLE IF EXISTS " + AppUsageSchema.TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + AppInfoSchema.TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + SurveyInfoSchema.TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + TextMsgInfoSchema.TABLE_NAME);
+        // Never drop tables here. Add a Migration to buildMigrations() instead.
+        mMigrator.upgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Build every step of the schema since version 1. To change the schema, bump
+     * DATABASE_VERSION, add a step for it at the end, and make the same change in onCreate().
+     * Steps run in the transaction of onUpgrade(), so anything that grows with the amount of
+     * tracking data goes into a Backfill.
+     * @return The steps, in version order.
+     */
+    private List<Migration> buildMigrations() {
+        ArrayList<Migration> migrations = new ArrayList<Migration>();
+
+        // Version 2 only adds the AppSession table. Keep existing tracking data.
+        migrations.add(new Migration(2, "Add AppSession table") {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                createAppSessionTable(db);
+            }
+        });
+
+        // Version 3 remembers which version of each app the name and icon belong to. Existing
+        // rows are unknown (-1), so their icons are refreshed once on the next save.
+        migrations.add(new Migration(3, "Add AppInfo version code") {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + AppInfoSchema.TABLE_NAME + " ADD COLUMN "
+                        + AppInfoSchema.COLUMN_VERSION_CODE + " INTEGER DEFAULT -1");
+            }
+        });
+
+        // Version 4 moves icons out of AppInfo into the AppIconStore. SQLite can't drop the
+        // old column, so its BLOBs are set to NULL instead. There is one row per app, not per
+        // day, so it isn't worth a backfill.
+        migrations.add(new Migration(4, "Move icons to AppIconStore") {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + AppInfoSchema.TABLE_NAME + " ADD COLUMN "
+                        + AppInfoSchema.COLUMN_ICON_HASH + " Text");
+                moveIconsToStore(db);
+            }
+        });
+
+        // Version 5 indexes AppUsage by date, so date range queries don't scan the whole table.
+        // SQLite builds an index in one statement, so this can't be split into chunks.
+        migrations.add(new Migration(5, "Index AppUsage by date") {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                createAppUsageDateIndex(db);
+            }
+        });
+
+        // Version 6 adds weekly and monthly rollups of AppUsage, filled from existing rows in
+        // the background. Until then readAppUsageTotals() sums the days.
+        migrations.add(new Migration(6, "Add AppUsage rollups") {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                createRollupTables(db);
+            }
+
+            @Override
+            public List<Backfill> getBackfills() {
+                return Arrays.<Backfill>asList(RollupBackfill.weekly(), RollupBackfill.monthly());
+            }
+        });
+
+        // Version 7 keeps the progress of backfills, so they resume after the process dies.
+        migrations.add(new Migration(7, "Add MigrationState table") {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                Migrator.createStateTable(db);
+            }
+        });
+
+        return migrations;
+    }
+
+    /**
+     * Run the backfills left by an upgrade, on a background thread. Each chunk is a short
+     * transaction, so tracking and the UI keep working meanwhile. Then delete the icons that
+     * AppInfo no longer refers to. Only the first call in a process does anything. Safe to call
+     * from any thread.
+     */
+    public synchronized void startBackfills() {
+        if (mBackfillThread != null)
+            return;
+
+        mBackfillThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                // Opening the database runs onUpgrade() and loads what is pending.
+                SQLiteDatabase db = getWritableDatabase();
+                if (mMigrator.hasPending())
+                    mMigrator.runPending(db);
+                sweepIconStore(db);
+            }
+        }, "Backfill");
+        mBackfillThread.start();
+    }
+
+    /**
+     * Delete the files of the AppIconStore that no AppInfo row refers to, e.g. the old icons of
+     * updated apps. Called once per process, on the backfill thread.
+     * @param db The database to read the hashes from.
+     */
+    private void sweepIconStore(SQLiteDatabase db) {
+        HashSet<String> hashes = new HashSet<String>();
+        try {
+            Cursor cursor = db.rawQuery("SELECT DISTINCT " + AppInfoSchema.COLUMN_ICON_HASH + " FROM "
+                    + AppInfoSchema.TABLE_NAME + " WHERE " + AppInfoSchema.COLUMN_ICON_HASH + " IS NOT NULL", null);
+            try {
+                while (cursor.moveToNext()) {
+                    hashes.add(cursor.getString(0));
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+        catch (SQLiteException e) {
+            Log.e(TAG, "sweepIconStore(): " + e.toString());
+            return;
+        }
+
+        int deleted = mIconStore.sweep(hashes);
+        if (deleted > 0)
+            Log.d(TAG, "Deleted " + deleted + " unused icons");
+    }
+
+    /**
+     * @return A human readable summary of the backfills, e.g. how far the running one is.
+     */
+    public String getBackfillStatus() {
+        return mMigrator.toString();
+    }
+
+    /**
+     * Create the weekly and monthly rollup tables of AppUsage. Used by onCreate() and buildMigrations().
+     * Rollups are only read by date range, so their primary keys start with the date.
+     * @param db The database to create the tables in.
+     */
+    private void createRollupTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + AppUsageWeeklySchema.TABLE_NAME + "("
+                + AppUsageWeeklySchema.COLUMN_START_DATE + " INTEGER, "
+                + AppUsageWeeklySchema.COLUMN_PACKAGE + " Text, "
+                + AppUsageWeeklySchema.COLUMN_USAGE_SEC + " INTEGER, "
+                + "PRIMARY KEY (" + AppUsageWeeklySchema.COLUMN_START_DATE + ", " + AppUsageWeeklySchema.COLUMN_PACKAGE + ")"
+                + ")");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + AppUsageMonthlySchema.TABLE_NAME + "("
+                + AppUsageMonthlySchema.COLUMN_START_DATE + " INTEGER, "
+                + AppUsageMonthlySchema.COLUMN_PACKAGE + " Text, "
+                + AppUsageMonthlySchema.COLUMN_USAGE_SEC + " INTEGER, "
+                + "PRIMARY KEY (" + AppUsageMonthlySchema.COLUMN_START_DATE + ", " + AppUsageMonthlySchema.COLUMN_PACKAGE + ")"
+                + ")");
+    }
+
+    /**
+     * Create the date index of the AppUsage table. Used by onCreate() and buildMigrations().
+     * @param db The database to create the index in.
+     */
+    private void createAppUsageDateIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + AppUsageSchema.INDEX_DATE + " ON "
+                + AppUsageSchema.TABLE_NAME + " (" + AppUsageSchema.COLUMN_DATE + ", "
+                + AppUsageSchema.COLUMN_PACKAGE + ")");
+    }
+
+    /**
+     * Move the icon BLOBs of AppInfo into the AppIconStore. Used by onUpgrade().
+     * @param db The database to upgrade.
+     */
+    private void moveIconsToStore(SQLiteDatabase db) {
+        Cursor cursor = db.query(AppInfoSchema.TABLE_NAME, new String[] {
+                AppInfoSchema.COLUMN_PACKAGE, AppInfoSchema.COLUMN_APP_ICON },
+                AppInfoSchema.COLUMN_APP_ICON + " IS NOT NULL", null, null, null, null);
+        SQLiteStatement statement = db.compileStatement("UPDATE " + AppInfoSchema.TABLE_NAME + " SET "
+                + AppInfoSchema.COLUMN_ICON_HASH + " = ?, " + AppInfoSchema.COLUMN_APP_ICON + " = NULL WHERE "
+                + AppInfoSchema.COLUMN_PACKAGE + " = ?");
+        try {
+            while (cursor.moveToNext()) {
+                bindStringOrNull(statement, 1, mIconStore.put(cursor.getBlob(1)));
+                statement.bindString(2, cursor.getString(0));
+                statement.executeUpdateDelete();
+            }
+        }
+        finally {
+            statement.close();
+            cursor.close();
+        }
+    }
 
-        // Create tables again
-        onCreate(db);
+    /**
+     * Create the AppSession table. Used by onCreate() and buildMigrations().
+     * @param db The database to create the table in.
+     */
+    private void createAppSessionTable(SQLiteDatabase db) {
+        String CREATE_APP_SESSION_TABLE = "CREATE TABLE IF NOT EXISTS " + AppSessionSchema.TABLE_NAME + "("
+                + AppSessionSchema.COLUMN_PACKAGE + " Text, "
+                + AppSessionSchema.COLUMN_START_MS + " INTEGER, "
+                + AppSessionSchema.COLUMN_END_MS + " INTEGER, "
+                + "PRIMARY KEY (" + AppSessionSchema.COLUMN_PACKAGE + ", " + AppSessionSchema.COLUMN_START_MS + ")"
+                + ")";
+        db.execSQL(CREATE_APP_SESSION_TABLE);
     }
 
     /**
      * Retrieve app usage entries from database satisfying certain conditions.
+     * Every entry is kept in memory; use forEachAppUsage() to go over large ranges.
      * @param startDate Earliest date to include in query. Pass in -1 to start from beginning
      * @param endDate Latest date to include in query. Pass in -1 to end at today.
-     * @return A list of app usage entries satisfying the given condition.
+     * @return A list of app usage entries satisfying the given condition, ordered by date.
      */
     public ArrayList<AppUsageEntry> readAppUsage(long startDate, long endDate) {
+        // Icons are not decoded here. Entries only carry the hash, see AppIconCache.
+        ListCollector<AppUsageEntry> collector = new ListCollector<AppUsageEntry>();
+        forEachAppUsage(startDate, endDate, collector);
+        return collector.Rows;
+    }
+
+    /**
+     * Stream app usage entries from database, one row at a time, ordered by date.
+     * The cursor is open while the visitor runs and closed before this method returns.
+     * @param startDate Earliest date to include in query. Pass in -1 to start from beginning
+     * @param endDate Latest date to include in query. Pass in -1 to end at today.
+     * @param visitor Called with each entry. Return false from it to stop.
+     * @return The number of entries visited.
+     */
+    public int forEachAppUsage(long startDate, long endDate, RowVisitor<AppUsageEntry> visitor) {
         SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = APP_USAGE_QUERY.query(db, (startDate > 0) ? startDate : 0,
+                (endDate > 0) ? endDate : Long.MAX_VALUE);
+        return new AppUsageEntry.Mapper().forEach(cursor, visitor);
+    }
+
+    /**
+     * The query of readAppUsage(). Also used by tests to check its plan.
+     * Arguments: earliest date, latest date.
+     */
+    static final PreparedQuery APP_USAGE_QUERY = buildAppUsageQuery();
 
+    private static PreparedQuery buildAppUsageQuery() {
         // Use a raw query to query appInfoTable and appUsageTable at the same time.
         // Specify selections.
         String selections = " ";
         selections += AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_PACKAGE + ", ";
         selections += AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_APP_NAME + ", ";
-        selections += AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_APP_ICON + ", ";
-        //selections += "SUM(" + AppUsageSchema.TABLE_NAME + "." + AppUsageSchema.COLUMN_USAGE_SEC + ")" +
-        //        " AS " + AppUsageSchema.COLUMN_USAGE_SEC + ", ";
+        selections += AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_ICON_HASH + ", ";
+        selections += AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_VERSION_CODE + ", ";
         selections += AppUsageSchema.TABLE_NAME + "." + AppUsageSchema.COLUMN_USAGE_SEC + ", ";
         selections += AppUsageSchema.TABLE_NAME + "." + AppUsageSchema.COLUMN_DATE + " ";
 
-        // Specify Tables ("FROM" clause).
-        String tables = " " + AppInfoSchema.TABLE_NAME + ", " + AppUsageSchema.TABLE_NAME + " ";
+        // Specify Tables ("FROM" clause). CROSS JOIN makes SQLite loop over AppUsage first, so
+        // a date range is a search of the date index, and AppInfo is looked up by primary key
+        // for the rows in range only.
+        String tables = " " + AppUsageSchema.TABLE_NAME + " CROSS JOIN " + AppInfoSchema.TABLE_NAME + " ";
 
-        // Specify conditions ("WHERE" clause)
+        // Specify conditions ("WHERE" clause). Open ends are bound as 0 and Long.MAX_VALUE, so
+        // every range uses the same statement.
         String conditions = " ";
         conditions += AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_PACKAGE +
                 " = " + AppUsageSchema.TABLE_NAME + "." + AppUsageSchema.COLUMN_PACKAGE;
-        if (startDate > 0)
-            conditions += " AND " + AppUsageSchema.TABLE_NAME + "." + AppUsageSchema.COLUMN_DATE + " >= " + startDate;
-        if (endDate > 0)
-            conditions += " AND " + AppUsageSchema.TABLE_NAME + "." + AppUsageSchema.COLUMN_DATE + " <= " + endDate + " ";
+        conditions += " AND " + AppUsageSchema.TABLE_NAME + "." + AppUsageSchema.COLUMN_DATE + " BETWEEN ? AND ?";
 
-        // Specify "GROUP BY" clause
-        //String groupBy =  " " + AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_PACKAGE + " ";
+        // The date index also gives the order, so SQLite doesn't sort.
+        String order = " " + AppUsageSchema.TABLE_NAME + "." + AppUsageSchema.COLUMN_DATE;
 
         // Construct raw query.
-        String rawQuery = "SELECT" + selections + "FROM" + tables + "WHERE" + conditions; // + "GROUP BY" + groupBy;
+        return new PreparedQuery("SELECT" + selections + "FROM" + tables + "WHERE" + conditions + " ORDER BY" + order);
+    }
 
-        // Query the database to get a cursor
-        Cursor cursor = db.rawQuery(rawQuery, null);
+    /**
+     * Retrieve the total usage of each app over a range of days, summed, sorted and limited by
+     * SQLite. Only the rows of the final result are read into Java. Whole months and weeks are
+     * read from the rollup tables, so the cost grows with the number of months in range, not days.
+     * @param startDate Earliest date to include in query. Pass in -1 to start from beginning.
+     * @param endDate Latest date to include in query. Pass in -1 to end at the last day stored.
+     * @param limit Maximum number of apps to return, the ones used most. Pass in -1 for all.
+     * @return One entry per app, sorted by usage time, most used first. DaysSinceEpoch is the
+     * last day of the range.
+     */
+    public ArrayList<AppUsageEntry> readAppUsageTotals(long startDate, long endDate, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        startDate = (startDate > 0) ? startDate : MIN_DATE_QUERY.queryForLong(db);
+        endDate = (endDate > 0) ? endDate : MAX_DATE_QUERY.queryForLong(db);
+        if (startDate > endDate)
+            return new ArrayList<AppUsageEntry>();
+
+        ArrayList<Object> args = new ArrayList<Object>();
+        PreparedQuery query = buildAppUsageTotalsQuery(startDate, endDate, 0, args);
+        args.add(limit);
+        return readAppUsageTotals(query, args);
+    }
 
+    /**
+     * Retrieve the total usage of some apps over a range of days.
+     * @param startDate Earliest date to include in query. Pass in -1 to start from beginning.
+     * @param endDate Latest date to include in query. Pass in -1 to end at the last day stored.
+     * @param packageNames The apps to sum. Apps without usage in range are left out.
+     * @return One entry per app, sorted by usage time, most used first.
+     */
+    public ArrayList<AppUsageEntry> readAppUsageTotals(long startDate, long endDate,
+                                                       Collection<String> packageNames) {
         ArrayList<AppUsageEntry> result = new ArrayList<AppUsageEntry>();
-        if (cursor.moveToFirst()){
-            for (int i=0; i<cursor.getCount(); i++){
-                result.add(new AppUsageEntry(cursor));
+        SQLiteDatabase db = this.getReadableDatabase();
+        startDate = (startDate > 0) ? startDate : MIN_DATE_QUERY.queryForLong(db);
+        endDate = (endDate > 0) ? endDate : MAX_DATE_QUERY.queryForLong(db);
+        if (startDate > endDate)
+            return result;
+
+        // SQLite limits the number of arguments of a query, so ask in chunks.
+        ArrayList<String> chunk = new ArrayList<String>(MAX_QUERY_ARGS);
+        for (String packageName : packageNames) {
+            chunk.add(packageName);
+            if (chunk.size() == MAX_QUERY_ARGS) {
+                result.addAll(readAppUsageTotalsChunk(startDate, endDate, chunk));
+                chunk.clear();
             }
         }
-
-        db.close();
+        if (!chunk.isEmpty())
+            result.addAll(readAppUsageTotalsChunk(startDate, endDate, chunk));
         return result;
     }
 
+    private ArrayList<AppUsageEntry> readAppUsageTotalsChunk(long startDate, long endDate, List<String> packageNames) {
+        // Pad the names to a power of two by repeating the last one, so a few query texts
+        // cover every number of apps and stay in the statement cache. IN ignores repeats.
+        int count = 1;
+        while (count < packageNames.size())
+            count <<= 1;
+
+        ArrayList<Object> args = new ArrayList<Object>();
+        PreparedQuery query = buildAppUsageTotalsQuery(startDate, endDate, count, args);
+        args.addAll(packageNames);
+        while (args.size() < query.getArgCount())
+            args.add(packageNames.get(packageNames.size() - 1));
+        return readAppUsageTotals(query, args);
+    }
+
+    private ArrayList<AppUsageEntry> readAppUsageTotals(PreparedQuery query, List<Object> args) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = query.query(db, args.toArray());
+
+        ListCollector<AppUsageEntry> collector = new ListCollector<AppUsageEntry>();
+        new AppUsageEntry.Mapper().forEach(cursor, collector);
+        return collector.Rows;
+    }
+
+    // First and last day stored in AppUsage. A single MIN() or MAX() is answered from the date
+    // index without a scan. 0 if AppUsage is empty. Also used by RollupBackfill.
+    static final PreparedQuery MIN_DATE_QUERY = new PreparedQuery("SELECT MIN("
+            + AppUsageSchema.COLUMN_DATE + ") FROM " + AppUsageSchema.TABLE_NAME);
+    static final PreparedQuery MAX_DATE_QUERY = new PreparedQuery("SELECT MAX("
+            + AppUsageSchema.COLUMN_DATE + ") FROM " + AppUsageSchema.TABLE_NAME);
+
+    /**
+     * Build the query of readAppUsageTotals(). Also used by tests to check its plan.
+     * The range is split into whole months, read from AppUsageMonthly, whole weeks outside those
+     * months, read from AppUsageWeekly, and the days left at the edges, read from AppUsage.
+     * Rollups that are still being backfilled are not used.
+     * @param startDate Earliest date to include in query.
+     * @param endDate Latest date to include in query.
+     * @param packageCount Number of package names the query is restricted to, bound after
+     *                     the arguments added to args. If 0, the query is over all apps, and
+     *                     the maximum number of apps is bound instead.
+     * @param args The dates of the query are added to this list. The text of the query only
+     *             depends on how the range splits, so ranges of the same shape share it.
+     * @return The query.
+     */
+    PreparedQuery buildAppUsageTotalsQuery(long startDate, long endDate, int packageCount, List<Object> args) {
+        // The last day is selected as the date of every entry, which comes first in the query.
+        args.add(endDate);
+
+        // A rollup that is still being backfilled is incomplete, so its days are summed instead.
+        boolean useWeeks = !mMigrator.isPending(RollupBackfill.WEEKLY);
+        boolean useMonths = !mMigrator.isPending(RollupBackfill.MONTHLY);
+
+        // Walk the range, taking the largest period that starts at each day and fits.
+        ArrayList<long[]> dayRanges = new ArrayList<long[]>();
+        ArrayList<long[]> weekRanges = new ArrayList<long[]>();
+        ArrayList<long[]> monthRanges = new ArrayList<long[]>();
+        long day = startDate;
+        while (day <= endDate) {
+            long nextMonth = TrackDateUtil.getNextMonthStart(day);
+            if (useMonths && TrackDateUtil.getMonthStart(day) == day && nextMonth - 1 <= endDate) {
+                addToRanges(monthRanges, day, nextMonth);
+                day = nextMonth;
+            }
+            // Don't let a week cross into a month that fits, which would lose the whole month.
+            else if (useWeeks && TrackDateUtil.getWeekStart(day) == day && day + 6 <= endDate
+                    && (!useMonths || day + 6 < nextMonth || TrackDateUtil.getNextMonthStart(nextMonth) - 1 > endDate)) {
+                addToRanges(weekRanges, day, day + 7);
+                day += 7;
+            }
+            else {
+                addToRanges(dayRanges, day, day + 1);
+                day++;
+            }
+        }
+
+        // Rows of all three tables in range, as (package, usage_sec).
+        ArrayList<String> parts = new ArrayList<String>();
+        for (long[] range : dayRanges) {
+            parts.add(buildRangeSelect(AppUsageSchema.TABLE_NAME, AppUsageSchema.COLUMN_DATE, range, args));
+        }
+        for (long[] range : weekRanges) {
+            parts.add(buildRangeSelect(AppUsageWeeklySchema.TABLE_NAME, AppUsageWeeklySchema.COLUMN_START_DATE, range, args));
+        }
+        for (long[] range : monthRanges) {
+            parts.add(buildRangeSelect(AppUsageMonthlySchema.TABLE_NAME, AppUsageMonthlySchema.COLUMN_START_DATE, range, args));
+        }
+        String rows = TextUtils.join(" UNION ALL ", parts);
+
+        // Sum per app.
+        String totals = "SELECT " + AppUsageSchema.COLUMN_PACKAGE + ", SUM(" + AppUsageSchema.COLUMN_USAGE_SEC
+                + ") AS " + AppUsageSchema.COLUMN_USAGE_SEC + " FROM (" + rows + ")";
+        if (packageCount > 0) {
+            totals += " WHERE " + AppUsageSchema.COLUMN_PACKAGE + " IN (?";
+            for (int i = 1; i < packageCount; i++) {
+                totals += ", ?";
+            }
+            totals += ")";
+        }
+        totals += " GROUP BY " + AppUsageSchema.COLUMN_PACKAGE;
+
+        // Join the few summed rows with AppInfo, sort and limit.
+        String selections = " ";
+        selections += "totals." + AppUsageSchema.COLUMN_PACKAGE + " AS " + AppUsageSchema.COLUMN_PACKAGE + ", ";
+        selections += AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_APP_NAME + ", ";
+        selections += AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_ICON_HASH + ", ";
+        selections += AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_VERSION_CODE + ", ";
+        selections += "totals." + AppUsageSchema.COLUMN_USAGE_SEC + " AS " + AppUsageSchema.COLUMN_USAGE_SEC + ", ";
+        selections += "CAST(? AS INTEGER) AS " + AppUsageSchema.COLUMN_DATE + " ";
+
+        String query = "SELECT" + selections + "FROM (" + totals + ") AS totals CROSS JOIN " + AppInfoSchema.TABLE_NAME
+                + " WHERE " + AppInfoSchema.TABLE_NAME + "." + AppInfoSchema.COLUMN_PACKAGE + " = totals." + AppUsageSchema.COLUMN_PACKAGE
+                + " ORDER BY totals." + AppUsageSchema.COLUMN_USAGE_SEC + " DESC, totals." + AppUsageSchema.COLUMN_PACKAGE;
+        // A negative LIMIT means no limit in SQLite.
+        if (packageCount == 0)
+            query += " LIMIT ?";
+        return new PreparedQuery(query);
+    }
+
+    /**
+     * Add a period to a list of ranges, extending the last range if the period follows it.
+     * @param ranges Ranges as {first start date, last start date, end of last period}.
+     * @param start First day of the period.
+     * @param next First day after the period.
+     */
+    private static void addToRanges(List<long[]> ranges, long start, long next) {
+        long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last[2] == start) {
+            last[1] = start;
+            last[2] = next;
+        }
+        else {
+            ranges.add(new long[] {start, start, next});
+        }
+    }
+
+    /**
+     * Build a select of (package, usage_sec) of a usage or rollup table over a range of start
+     * dates. All three tables use the same column names for package and usage.
+     * The first and last start date are added to args.
+     */
+    private static String buildRangeSelect(String table, String dateColumn, long[] range, List<Object> args) {
+        args.add(range[0]);
+        args.add(range[1]);
+        return "SELECT " + AppUsageSchema.COLUMN_PACKAGE + ", " + AppUsageSchema.COLUMN_USAGE_SEC + " FROM " + table
+                + " WHERE " + dateColumn + " BETWEEN ? AND ?";
+    }
+
     /**
      * Write an AppUsage entry into the database, overwriting any existing entries.
+     * Prefer writeAppUsageBatch() when writing more than one entry.
      * @param entry The AppUsage entry that we write into the database.
      */
     public void writeAppUsage(AppUsageEntry entry) {
+        writeAppUsageBatch(Collections.singletonList(entry), Collections.<AppSession>emptyList());
+    }
+
+    /**
+     * Write a batch of AppUsage entries and AppSessions in one transaction. The insert statements
+     * are compiled once and reused for every row. The name and icon of an app are only written
+     * (and the icon only loaded from PackageManager and encoded into the AppIconStore) when the
+     * app is new, or its VersionCode differs from the stored one. Icons are loaded and stored
+     * before the transaction starts, so the write lock is only held for the database writes.
+     * @param entries The AppUsage entries to write, overwriting existing entries.
+     * @param sessions The AppSessions to write, overwriting existing sessions.
+     * @return How many rows were written, and how long it took.
+     */
+    public FlushStats writeAppUsageBatch(Collection<AppUsageEntry> entries, Collection<AppSession> sessions) {
+        long startTime = SystemClock.elapsedRealtime();
+        int usageRows = 0, sessionRows = 0;
+        boolean success = false;
+        // App versions written by this batch. Only remembered if the transaction succeeds.
+        HashMap<String, Integer> writtenVersions = new HashMap<String, Integer>();
+
         SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteStatement appInfoStatement = null, appUsageStatement = null, sessionStatement = null;
+        SQLiteStatement oldUsageStatement = null;
+        RollupWriter weeklyWriter = null, monthlyWriter = null;
 
-        // Insert app info (name and icon) if AppInfo table doesn't have this app yet.
-        ContentValues appInfoValues = new ContentValues();
-        appInfoValues.put(AppInfoSchema.COLUMN_PACKAGE, entry.PackageName);
-        appInfoValues.put(AppInfoSchema.COLUMN_APP_NAME, entry.AppName);
-        appInfoValues.put(AppInfoSchema.COLUMN_APP_ICON, entry.getIconInByteArray());
-        db.insertWithOnConflict(AppInfoSchema.TABLE_NAME, null, appInfoValues, SQLiteDatabase.CONFLICT_IGNORE);
+        // Load the icons of new and updated apps and put them into the icon store, outside the
+        // transaction. Decoding and encoding icons is slow, and the store is just files. An icon
+        // stored for a transaction that then fails is simply stored again by the next write.
+        LinkedHashMap<String, AppUsageEntry> appInfoEntries = new LinkedHashMap<String, AppUsageEntry>();
+        HashMap<String, String> iconHashes = new HashMap<String, String>();
+        try {
+            loadAppVersions(db);
+        }
+        catch (SQLiteException e) {
+            Log.e(TAG, "writeAppUsageBatch(): " + e.toString());
+            return new FlushStats(false, 0, 0, 0, SystemClock.elapsedRealtime() - startTime);
+        }
+        AppIconCache iconCache = AppIconCache.getInstance(mContext);
+        for (AppUsageEntry entry : entries) {
+            if (needsAppInfo(entry) && !appInfoEntries.containsKey(entry.PackageName)) {
+                appInfoEntries.put(entry.PackageName, entry);
+                iconHashes.put(entry.PackageName, mIconStore.put(iconCache.loadFromPackageManager(entry.PackageName)));
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            // Insert or replace app info (name, icon and version) of new and updated apps.
+            appInfoStatement = db.compileStatement("INSERT OR REPLACE INTO " + AppInfoSchema.TABLE_NAME + " ("
+                    + AppInfoSchema.COLUMN_PACKAGE + ", " + AppInfoSchema.COLUMN_APP_NAME + ", "
+                    + AppInfoSchema.COLUMN_ICON_HASH + ", " + AppInfoSchema.COLUMN_VERSION_CODE
+                    + ") VALUES (?, ?, ?, ?)");
+
+            // Insert app usage info, overwriting any existing entries.
+            appUsageStatement = db.compileStatement("INSERT OR REPLACE INTO " + AppUsageSchema.TABLE_NAME + " ("
+                    + AppUsageSchema.COLUMN_PACKAGE + ", " + AppUsageSchema.COLUMN_USAGE_SEC + ", "
+                    + AppUsageSchema.COLUMN_DATE + ") VALUES (?, ?, ?)");
+
+            // Usage stored before this write, so only the difference is added to the rollups.
+            oldUsageStatement = db.compileStatement("SELECT IFNULL((SELECT " + AppUsageSchema.COLUMN_USAGE_SEC
+                    + " FROM " + AppUsageSchema.TABLE_NAME + " WHERE " + AppUsageSchema.COLUMN_PACKAGE + " = ? AND "
+                    + AppUsageSchema.COLUMN_DATE + " = ?), 0)");
+            weeklyWriter = new RollupWriter(db, AppUsageWeeklySchema.TABLE_NAME);
+            monthlyWriter = new RollupWriter(db, AppUsageMonthlySchema.TABLE_NAME);
+
+            sessionStatement = db.compileStatement("INSERT OR REPLACE INTO " + AppSessionSchema.TABLE_NAME + " ("
+                    + AppSessionSchema.COLUMN_PACKAGE + ", " + AppSessionSchema.COLUMN_START_MS + ", "
+                    + AppSessionSchema.COLUMN_END_MS + ") VALUES (?, ?, ?)");
+
+            for (AppUsageEntry entry : appInfoEntries.values()) {
+                bindStringOrNull(appInfoStatement, 1, entry.PackageName);
+                bindStringOrNull(appInfoStatement, 2, entry.AppName);
+                bindStringOrNull(appInfoStatement, 3, iconHashes.get(entry.PackageName));
+                appInfoStatement.bindLong(4, entry.VersionCode);
+                appInfoStatement.executeInsert();
+                writtenVersions.put(entry.PackageName, entry.VersionCode);
+            }
 
-        // Insert app usage info, overwriting any existing entries.
-        ContentValues appUsageValues = new ContentValues();
-        appUsageValues.put(AppUsageSchema.COLUMN_PACKAGE, entry.PackageName);
-        appUsageValues.put(AppUsageSchema.COLUMN_USAGE_SEC, entry.UsageTimeSec);
-        appUsageValues.put(AppUsageSchema.COLUMN_DATE, entry.DaysSinceEpoch);
-        db.insertWithOnConflict(AppUsageSchema.TABLE_NAME, null, appUsageValues, SQLiteDatabase.CONFLICT_REPLACE);
+            for (AppUsageEntry entry : entries) {
+                bindStringOrNull(oldUsageStatement, 1, entry.PackageName);
+                oldUsageStatement.bindLong(2, entry.DaysSinceEpoch);
+                long deltaSec = entry.UsageTimeSec - oldUsageStatement.simpleQueryForLong();
+                if (deltaSec != 0) {
+                    weeklyWriter.add(TrackDateUtil.getWeekStart(entry.DaysSinceEpoch), entry.PackageName, deltaSec);
+                    monthlyWriter.add(TrackDateUtil.getMonthStart(entry.DaysSinceEpoch), entry.PackageName, deltaSec);
+                }
 
-        db.close();
+                bindStringOrNull(appUsageStatement, 1, entry.PackageName);
+                appUsageStatement.bindLong(2, entry.UsageTimeSec);
+                appUsageStatement.bindLong(3, entry.DaysSinceEpoch);
+                appUsageStatement.executeInsert();
+                usageRows++;
+            }
+
+            for (AppSession session : sessions) {
+                bindStringOrNull(sessionStatement, 1, session.PackageName);
+                sessionStatement.bindLong(2, session.StartMs);
+                sessionStatement.bindLong(3, session.EndMs);
+                sessionStatement.executeInsert();
+                sessionRows++;
+            }
+
+            db.setTransactionSuccessful();
+            success = true;
+        }
+        catch (SQLiteException e) {
+            Log.e(TAG, "writeAppUsageBatch(): " + e.toString());
+        }
+        finally {
+            db.endTransaction();
+            if (appInfoStatement != null)
+                appInfoStatement.close();
+            if (appUsageStatement != null)
+                appUsageStatement.close();
+            if (sessionStatement != null)
+                sessionStatement.close();
+            if (oldUsageStatement != null)
+                oldUsageStatement.close();
+            if (weeklyWriter != null)
+                weeklyWriter.close();
+            if (monthlyWriter != null)
+                monthlyWriter.close();
+        }
+
+        if (success) {
+            synchronized (mAppVersions) {
+                mAppVersions.putAll(writtenVersions);
+            }
+        }
+        else {
+            usageRows = sessionRows = 0;
+            writtenVersions.clear();
+        }
+        return new FlushStats(success, usageRows, sessionRows, writtenVersions.size(),
+                SystemClock.elapsedRealtime() - startTime);
     }
 
-    public List<SurveyEntry> readSurveyInfo() {
-        SQLiteDatabase db = this.getReadableDatabase();
-        String tableName = SurveyInfoSchema.TABLE_NAME;
-        String[] columns = null;
-        String selection = null;
-        String[] selectionArgs = null;
-        String groupBy = null;
-        String having = null;
-        String orderBy = SurveyInfoSchema.COLUMN_DATE + " DESC";
-        String limit = null;
-
-        Cursor surveyCursor = db.query(tableName, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
-        ArrayList<SurveyEntry> entries = new ArrayList<SurveyEntry>();
-        if (surveyCursor.moveToFirst()) {
-            int numSurveys = surveyCursor.getCount();
-            for (int i = 0; i < numSurveys; i++) {
-                entries.add(new SurveyEntry(surveyCursor));
+    /**
+     * Adds usage to the rows of one rollup table, in the transaction of writeAppUsageBatch().
+     * The statements are compiled once and reused for every row. Both rollup tables use the
+     * same column names.
+     */
+    private static class RollupWriter {
+        private final SQLiteStatement mInsertStatement;
+        private final SQLiteStatement mUpdateStatement;
+
+        RollupWriter(SQLiteDatabase db, String table) {
+            mInsertStatement = db.compileStatement("INSERT OR IGNORE INTO " + table + " ("
+                    + AppUsageWeeklySchema.COLUMN_START_DATE + ", " + AppUsageWeeklySchema.COLUMN_PACKAGE + ", "
+                    + AppUsageWeeklySchema.COLUMN_USAGE_SEC + ") VALUES (?, ?, 0)");
+            mUpdateStatement = db.compileStatement("UPDATE " + table + " SET "
+                    + AppUsageWeeklySchema.COLUMN_USAGE_SEC + " = " + AppUsageWeeklySchema.COLUMN_USAGE_SEC + " + ? WHERE "
+                    + AppUsageWeeklySchema.COLUMN_START_DATE + " = ? AND " + AppUsageWeeklySchema.COLUMN_PACKAGE + " = ?");
+        }
+
+        /**
+         * Add usage to the row of a package and period, creating the row if needed.
+         * @param startDate First day of the period.
+         * @param packageName The package.
+         * @param deltaSec Usage to add, in seconds. Negative if usage was overwritten with less.
+         */
+        void add(long startDate, String packageName, long deltaSec) {
+            mInsertStatement.bindLong(1, startDate);
+            bindStringOrNull(mInsertStatement, 2, packageName);
+            mInsertStatement.executeInsert();
+
+            mUpdateStatement.bindLong(1, deltaSec);
+            mUpdateStatement.bindLong(2, startDate);
+            bindStringOrNull(mUpdateStatement, 3, packageName);
+            mUpdateStatement.executeUpdateDelete();
+        }
+
+        void close() {
+            mInsertStatement.close();
+            mUpdateStatement.close();
+        }
+    }
+
+    /**
+     * Load the stored version of every app in AppInfo, if not loaded yet.
+     * @param db The database to read from.
+     */
+    private void loadAppVersions(SQLiteDatabase db) {
+        synchronized (mAppVersions) {
+            if (mAppVersionsLoaded)
+                return;
+
+            Cursor cursor = db.query(AppInfoSchema.TABLE_NAME, new String[] {
+                    AppInfoSchema.COLUMN_PACKAGE, AppInfoSchema.COLUMN_VERSION_CODE },
+                    null, null, null, null, null);
+            while (cursor.moveToNext()) {
+                mAppVersions.put(cursor.getString(0), cursor.getInt(1));
             }
+            cursor.close();
+            mAppVersionsLoaded = true;
         }
+    }
+
+    /**
+     * Decide whether the AppInfo row of an entry has to be written: the app is not stored yet,
+     * or the entry knows its version and it differs from the stored one.
+     * @param entry The entry to be saved.
+     * @return True if the name and icon of the entry have to be written.
+     */
+    private boolean needsAppInfo(AppUsageEntry entry) {
+        Integer storedVersion;
+        synchronized (mAppVersions) {
+            storedVersion = mAppVersions.get(entry.PackageName);
+        }
+        if (storedVersion == null)
+            return true;
+        return entry.VersionCode >= 0 && entry.VersionCode != storedVersion;
+    }
+
+    /**
+     * Bind a String to a compiled statement, or NULL if the String is null.
+     */
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
+    }
+
+    /**
+     * Retrieve all survey entries from database, newest first.
+     * @return A list of every survey entry.
+     */
+    public List<SurveyEntry> readSurveyInfo() {
+        ListCollector<SurveyEntry> collector = new ListCollector<SurveyEntry>();
+        forEachSurveyEntry(SURVEY_NEWEST_FIRST_QUERY, collector);
+        return collector.Rows;
+    }
+
+    /**
+     * Stream all survey entries from database, one row at a time, oldest first.
+     * The cursor is open while the visitor runs and closed before this method returns.
+     * @param visitor Called with each entry. Return false from it to stop.
+     * @return The number of entries visited.
+     */
+    public int forEachSurveyEntry(RowVisitor<SurveyEntry> visitor) {
+        return forEachSurveyEntry(SURVEY_OLDEST_FIRST_QUERY, visitor);
+    }
+
+    private static final PreparedQuery SURVEY_OLDEST_FIRST_QUERY = new PreparedQuery("SELECT * FROM "
+            + SurveyInfoSchema.TABLE_NAME + " ORDER BY " + SurveyInfoSchema.COLUMN_DATE);
+    private static final PreparedQuery SURVEY_NEWEST_FIRST_QUERY = new PreparedQuery("SELECT * FROM "
+            + SurveyInfoSchema.TABLE_NAME + " ORDER BY " + SurveyInfoSchema.COLUMN_DATE + " DESC");
 
-        db.close();
-        return entries;
+    private int forEachSurveyEntry(PreparedQuery query, RowVisitor<SurveyEntry> visitor) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = query.query(db);
+        return new SurveyEntry.Mapper().forEach(cursor, visitor);
     }
 
     public void writeSurveyEntry(SurveyEntry entry) {
@@ -223,59 +923,109 @@ public class TrackDatabase extends SQLiteOpenHelper {
 
         surveyValues.put(SurveyInfoSchema.COLUMN_QUESTIONS_ANSWERS, builder.toString());
         db.insertWithOnConflict(SurveyInfoSchema.TABLE_NAME, null, surveyValues, SQLiteDatabase.CONFLICT_IGNORE);
-        db.close();
     }
 
     /**
-     * Read a TextMsg entry from the database
+     * Read TextMsg entries from the database, ordered by date.
+     * @param negativeScore Only read entries that have not been scored yet.
+     * @return A list of the entries.
      */
     public ArrayList<TextMsgEntry> readTextMsg(boolean negativeScore) {
+        ListCollector<TextMsgEntry> collector = new ListCollector<TextMsgEntry>();
+        forEachTextMsg(negativeScore, collector);
+        return collector.Rows;
+    }
+
+    /**
+     * Stream TextMsg entries from the database, one row at a time, ordered by date.
+     * The cursor is open while the visitor runs and closed before this method returns.
+     * @param negativeScore Only read entries that have not been scored yet.
+     * @param visitor Called with each entry. Return false from it to stop.
+     * @return The number of entries visited.
+     */
+    public int forEachTextMsg(boolean negativeScore, RowVisitor<TextMsgEntry> visitor) {
         SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = (negativeScore ? UNSCORED_TEXT_MSG_QUERY : TEXT_MSG_QUERY).query(db);
+        return new TextMsgEntry.Mapper().forEach(cursor, visitor);
+    }
 
-        // Specify conditions ("WHERE" clause)
-        String conditions = "";
-        if (negativeScore) {
-            conditions += " WHERE ";
-            conditions += TextMsgInfoSchema.COLUMN_POS + " < 0 OR ";
-            conditions += TextMsgInfoSchema.COLUMN_NEG + " < 0 OR ";
-            conditions += TextMsgInfoSchema.COLUMN_NEUTRAL + " < 0";
-        }
+    private static final PreparedQuery TEXT_MSG_QUERY = new PreparedQuery("SELECT * FROM "
+            + TextMsgInfoSchema.TABLE_NAME + " ORDER BY " + TextMsgInfoSchema.COLUMN_DATE);
+    private static final PreparedQuery UNSCORED_TEXT_MSG_QUERY = new PreparedQuery("SELECT * FROM "
+            + TextMsgInfoSchema.TABLE_NAME + " WHERE "
+            + TextMsgInfoSchema.COLUMN_POS + " < 0 OR "
+            + TextMsgInfoSchema.COLUMN_NEG + " < 0 OR "
+            + TextMsgInfoSchema.COLUMN_NEUTRAL + " < 0"
+            + " ORDER BY " + TextMsgInfoSchema.COLUMN_DATE);
 
-        // Construct raw query.
-        String rawQuery = "SELECT * FROM " + TextMsgInfoSchema.TABLE_NAME + conditions;
+    /**
+     * Write a TextMsg entry into the database, overwriting any existing entry.
+     * Prefer writeTextMsgBatch() when writing more than one entry.
+     */
+    public void writeTextMsgRecord (TextMsgEntry entry) {
+        writeTextMsgBatch(Collections.singletonList(entry));
+    }
 
-        // Query the database to get a cursor
-        Cursor cursor = db.rawQuery(rawQuery, null);
+    /**
+     * Write a batch of TextMsg entries in one transaction, overwriting existing entries.
+     * The insert statement is compiled once and reused for every row.
+     * @param entries The TextMsg entries to write.
+     * @return The number of rows written, or 0 if the transaction failed.
+     */
+    public int writeTextMsgBatch(Collection<TextMsgEntry> entries) {
+        int rows = 0;
+        boolean success = false;
 
-        ArrayList<TextMsgEntry> result = new ArrayList<TextMsgEntry>();
-        if (cursor.moveToFirst()){
-            for (int i=0; i<cursor.getCount(); i++){
-                result.add(new TextMsgEntry(cursor));
+        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteStatement statement = null;
+        db.beginTransaction();
+        try {
+            statement = db.compileStatement("INSERT OR REPLACE INTO " + TextMsgInfoSchema.TABLE_NAME + " ("
+                    + TextMsgInfoSchema.COLUMN_ID + ", " + TextMsgInfoSchema.COLUMN_DATE + ", "
+                    + TextMsgInfoSchema.COLUMN_SENDER + ", " + TextMsgInfoSchema.COLUMN_RECEIVER + ", "
+                    + TextMsgInfoSchema.COLUMN_TYPE + ", " + TextMsgInfoSchema.COLUMN_MESSAGE + ", "
+                    + TextMsgInfoSchema.COLUMN_POS + ", " + TextMsgInfoSchema.COLUMN_NEG + ", "
+                    + TextMsgInfoSchema.COLUMN_NEUTRAL + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+
+            for (TextMsgEntry entry : entries) {
+                statement.bindLong(1, entry.id);
+                statement.bindLong(2, entry.date);
+                bindStringOrNull(statement, 3, entry.sender);
+                bindStringOrNull(statement, 4, entry.receiver);
+                statement.bindLong(5, entry.type);
+                bindStringOrNull(statement, 6, entry.message);
+                statement.bindDouble(7, entry.positive);
+                statement.bindDouble(8, entry.negative);
+                statement.bindDouble(9, entry.neutral);
+                statement.executeInsert();
+                rows++;
             }
+
+            db.setTransactionSuccessful();
+            success = true;
+        }
+        catch (SQLiteException e) {
+            Log.e(TAG, "writeTextMsgBatch(): " + e.toString());
+        }
+        finally {
+            db.endTransaction();
+            if (statement != null)
+                statement.close();
         }
-        db.close();
 
-        return result;
+        return success ? rows : 0;
     }
-     /**
-     * Write a TextMsg entry into the database.
+
+    /**
+     * Collects the rows of a streaming read into a list, for the reads that return lists.
      */
-    public void writeTextMsgRecord (TextMsgEntry entry) {
-        SQLiteDatabase db = this.getWritableDatabase();
+    private static class ListCollector<T> implements RowVisitor<T> {
+        public final ArrayList<T> Rows = new ArrayList<T>();
 
-        ContentValues textMsgValues = new ContentValues();
-        textMsgValues.put(TextMsgInfoSchema.COLUMN_ID, entry.id);
-        textMsgValues.put(TextMsgInfoSchema.COLUMN_DATE, entry.date);
-        textMsgValues.put(TextMsgInfoSchema.COLUMN_SENDER, entry.sender);
-        textMsgValues.put(TextMsgInfoSchema.COLUMN_RECEIVER, entry.receiver);
-        textMsgValues.put(TextMsgInfoSchema.COLUMN_TYPE,entry.type);
-        textMsgValues.put(TextMsgInfoSchema.COLUMN_MESSAGE, entry.message);
-        textMsgValues.put(TextMsgInfoSchema.COLUMN_POS, entry.positive);
-        textMsgValues.put(TextMsgInfoSchema.COLUMN_NEG, entry.negative);
-        textMsgValues.put(TextMsgInfoSchema.COLUMN_NEUTRAL, entry.neutral);
-        db.insertWithOnConflict(TextMsgInfoSchema.TABLE_NAME, null, textMsgValues,SQLiteDatabase.CONFLICT_REPLACE);
-        db.close();
+        @Override
+        public boolean visit(T row) {
+            Rows.add(row);
+            return true;
+        }
     }
-
-
 }
@@ -0,0 +1,199 @@
+package edu.swarthmore.cs.moodtracker.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import java.util.Locale;
+
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppInfoSchema;
+import edu.swarthmore.cs.moodtracker.db.TrackContract.AppUsageSchema;
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Measures TrackDatabase on the device it runs on. Started from DiagnosticsActivity.
+ * Only reads the tracking data, through read-only connections, so it is safe to run on a real
+ * database while the app keeps tracking.
+ */
+public class TrackDatabaseBenchmark {
+    public static final String TAG = "TrackDatabaseBenchmark";
+
+    // Query run by the connection benchmark: last week's usage, as the app usage list reads it.
+    private static final String WEEK_QUERY = "SELECT " + AppUsageSchema.COLUMN_PACKAGE + ", "
+            + AppUsageSchema.COLUMN_USAGE_SEC + " FROM " + AppUsageSchema.TABLE_NAME
+            + " WHERE " + AppUsageSchema.COLUMN_DATE + " >= ?";
+
+    // Table and query of the row mapper benchmark, in an in-memory database.
+    private static final String MAPPER_TABLE = "MapperRows";
+    private static final String MAPPER_QUERY = "SELECT * FROM " + MAPPER_TABLE;
+    private static final int MAPPER_APP_COUNT = 50;
+
+    private final Context mContext;
+    private final TrackDatabase mDatabase;
+
+    /**
+     * Construct a benchmark of the app's database.
+     * @param context Used to find the database.
+     */
+    public TrackDatabaseBenchmark(Context context) {
+        mContext = context.getApplicationContext();
+        mDatabase = TrackDatabase.getInstance(context);
+    }
+
+    /**
+     * Compare the latency of one read call when every call opens and closes its own connection,
+     * as TrackDatabase used to, with the latency on the long-lived connection.
+     * The connections opened per call are read-only and, from API 16 on, in write-ahead logging
+     * mode like the long-lived one, so they don't try to change the journal mode of the live
+     * database. Must not be called on the main thread.
+     * @param iterations Number of calls to time for each variant.
+     * @return A human readable report.
+     */
+    public String runConnectionBenchmark(int iterations) {
+        String path = mContext.getDatabasePath(TrackContract.DATABASE_NAME).getPath();
+        String[] args = new String[] {String.valueOf(TrackDateUtil.getDaysSinceEpoch() - 7)};
+        // Below API 16 the flag doesn't exist, and a read-only connection leaves the mode alone.
+        int flags = SQLiteDatabase.OPEN_READONLY;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            flags |= SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING;
+
+        // Make sure the long-lived connection is open, so it is not charged to the first call.
+        SQLiteDatabase longLived = mDatabase.getReadableDatabase();
+
+        long openCloseNanos = 0, longLivedNanos = 0;
+        int rows = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, flags);
+            rows = readAll(db, args);
+            db.close();
+            openCloseNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            readAll(longLived, args);
+            longLivedNanos += System.nanoTime() - start;
+        }
+
+        return String.format(Locale.US,
+                "Connection benchmark (%d calls, %d rows each):\n"
+                        + "  open/close per call: %.3f ms per call\n"
+                        + "  long-lived WAL connection: %.3f ms per call\n",
+                iterations, rows, openCloseNanos / 1e6 / iterations, longLivedNanos / 1e6 / iterations);
+    }
+
+    /**
+     * Compare the cost per row of mapping a large read with AppUsageEntry.Mapper, which looks up
+     * column indexes once per cursor, with looking them up by name on every row.
+     * The rows are generated in an in-memory database with the columns of readAppUsage(), so
+     * the tracking data is not touched. Must not be called on the main thread.
+     * @param rows Number of rows to read, e.g. 100000.
+     * @return A human readable report.
+     */
+    public String runRowMapperBenchmark(int rows) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            fillMapperTable(db, rows);
+
+            // Read once with each variant first, so neither is charged for warming up.
+            long lookupNanos = 0, mapperNanos = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                long start = System.nanoTime();
+                mapWithLookups(db.rawQuery(MAPPER_QUERY, null));
+                lookupNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                new AppUsageEntry.Mapper().forEach(db.rawQuery(MAPPER_QUERY, null),
+                        new RowVisitor<AppUsageEntry>() {
+                            @Override
+                            public boolean visit(AppUsageEntry row) {
+                                return true;
+                            }
+                        });
+                mapperNanos = System.nanoTime() - start;
+            }
+
+            return String.format(Locale.US,
+                    "Row mapper benchmark (%d rows):\n"
+                            + "  column lookup per row: %.0f ns per row\n"
+                            + "  indexes resolved once: %.0f ns per row\n",
+                    rows, (double) lookupNanos / rows, (double) mapperNanos / rows);
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Create the table of the row mapper benchmark and fill it in one transaction.
+     * @param db The in-memory database.
+     * @param rows Number of rows to insert.
+     */
+    private static void fillMapperTable(SQLiteDatabase db, int rows) {
+        db.execSQL("CREATE TABLE " + MAPPER_TABLE + " ("
+                + AppUsageSchema.COLUMN_PACKAGE + " TEXT, " + AppInfoSchema.COLUMN_APP_NAME + " TEXT, "
+                + AppInfoSchema.COLUMN_ICON_HASH + " TEXT, " + AppInfoSchema.COLUMN_VERSION_CODE + " INTEGER, "
+                + AppUsageSchema.COLUMN_USAGE_SEC + " INTEGER, " + AppUsageSchema.COLUMN_DATE + " INTEGER)");
+        SQLiteStatement statement = db.compileStatement("INSERT INTO " + MAPPER_TABLE
+                + " VALUES (?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                int app = i % MAPPER_APP_COUNT;
+                statement.bindString(1, "com.example.app" + app);
+                statement.bindString(2, "App " + app);
+                statement.bindString(3, "0123456789abcdef0123456789abcdef0123456" + (app % 10));
+                statement.bindLong(4, app);
+                statement.bindLong(5, i % 3600);
+                statement.bindLong(6, i / MAPPER_APP_COUNT);
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+            statement.close();
+        }
+    }
+
+    /**
+     * Map every row the way entries used to be read, looking up each column by name on every
+     * row. The baseline of runRowMapperBenchmark().
+     * @param cursor The cursor to map. Closed when done.
+     */
+    private static void mapWithLookups(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                AppUsageEntry entry = new AppUsageEntry(null, null, -1, -1);
+                entry.PackageName = cursor.getString(cursor.getColumnIndex(AppUsageSchema.COLUMN_PACKAGE));
+                entry.AppName = cursor.getString(cursor.getColumnIndex(AppInfoSchema.COLUMN_APP_NAME));
+                entry.IconHash = cursor.getString(cursor.getColumnIndex(AppInfoSchema.COLUMN_ICON_HASH));
+                entry.VersionCode = cursor.getInt(cursor.getColumnIndex(AppInfoSchema.COLUMN_VERSION_CODE));
+                entry.UsageTimeSec = cursor.getInt(cursor.getColumnIndex(AppUsageSchema.COLUMN_USAGE_SEC));
+                entry.DaysSinceEpoch = cursor.getLong(cursor.getColumnIndex(AppUsageSchema.COLUMN_DATE));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Run the week query and read every row.
+     * @param db The connection to query.
+     * @param args Arguments of the query.
+     * @return The number of rows read.
+     */
+    private static int readAll(SQLiteDatabase db, String[] args) {
+        Cursor cursor = db.rawQuery(WEEK_QUERY, args);
+        int rows = 0;
+        while (cursor.moveToNext()) {
+            cursor.getString(0);
+            cursor.getInt(1);
+            rows++;
+        }
+        cursor.close();
+        return rows;
+    }
+}
@@ -11,10 +11,13 @@ import android.util.Log;
 
 import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 
 import edu.swarthmore.cs.moodtracker.db.QuerySentimentTask;
+import edu.swarthmore.cs.moodtracker.db.RowMapper;
+import edu.swarthmore.cs.moodtracker.db.RowVisitor;
 import edu.swarthmore.cs.moodtracker.db.TextMsgEntry;
 import edu.swarthmore.cs.moodtracker.db.TrackDatabase;
 
@@ -53,23 +56,16 @@ public class CollectTextMsgReceiver extends BroadcastReceiver {
 
         Log.d(TAG, "cursor created");
         if (cur != null) {
-            if (cur.moveToFirst()) {
-                do {
-                    /*for (int i=0; i < cur.getColumnCount(); i++) {
-                        String name = cur.getColumnName(i);
-                        System.out.println(name + " : " + cur.getString(i));
-                    }*/
-                    Integer id = cur.getInt(cur.getColumnIndex("_id"));
-                    Long date = cur.getLong(cur.getColumnIndex("date"));
-                    String sender = cur.getString(cur.getColumnIndex("person"));
-                    String receiver = cur.getString(cur.getColumnIndex("address"));
-                    String message = cur.getString(cur.getColumnIndex("body"));
-                    Integer type = cur.getInt(cur.getColumnIndex("type"));
-                    TextMsgEntry entry = new TextMsgEntry(id,date,sender,receiver,type,message,-1,-1,-1);
-                    mDatabase.writeTextMsgRecord(entry);
-                } while (cur.moveToNext());
-            }
-            cur.close();
+            // Write the whole day in one transaction.
+            final ArrayList<TextMsgEntry> entries = new ArrayList<TextMsgEntry>(cur.getCount());
+            new SmsMapper().forEach(cur, new RowVisitor<TextMsgEntry>() {
+                @Override
+                public boolean visit(TextMsgEntry entry) {
+                    entries.add(entry);
+                    return true;
+                }
+            });
+            mDatabase.writeTextMsgBatch(entries);
         }
 
         ConnectivityManager mConManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -118,4 +114,27 @@ public class CollectTextMsgReceiver extends BroadcastReceiver {
 
     }
 
+    /**
+     * Maps rows of the SMS provider to unscored TextMsgEntries.
+     */
+    private static class SmsMapper extends RowMapper<TextMsgEntry> {
+        private int mIdIndex, mDateIndex, mSenderIndex, mReceiverIndex, mMessageIndex, mTypeIndex;
+
+        @Override
+        protected void resolve(Cursor cursor) {
+            mIdIndex = getColumnIndex(cursor, "_id");
+            mDateIndex = getColumnIndex(cursor, "date");
+            mSenderIndex = getColumnIndex(cursor, "person");
+            mReceiverIndex = getColumnIndex(cursor, "address");
+            mMessageIndex = getColumnIndex(cursor, "body");
+            mTypeIndex = getColumnIndex(cursor, "type");
+        }
+
+        @Override
+        protected TextMsgEntry map(Cursor cursor) {
+            return new TextMsgEntry(cursor.getInt(mIdIndex), cursor.getLong(mDateIndex),
+                    cursor.getString(mSenderIndex), cursor.getString(mReceiverIndex),
+                    cursor.getInt(mTypeIndex), cursor.getString(mMessageIndex), -1, -1, -1);
+        }
+    }
 }
@@ -0,0 +1,36 @@
+package edu.swarthmore.cs.moodtracker.receivers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import edu.swarthmore.cs.moodtracker.services.LauncherProcessIndex;
+
+/**
+ * Keeps the persisted LauncherProcessIndex up to date when packages are installed, updated,
+ * enabled or removed. Declared in the manifest, so it also runs while TrackService is not.
+ */
+public class PackageChangeReceiver extends BroadcastReceiver {
+    public static final String TAG = "PackageChangeReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (intent.getData() == null)
+            return;
+
+        String action = intent.getAction();
+        String packageName = intent.getData().getSchemeSpecificPart();
+        Log.d(TAG, action + " " + packageName);
+
+        LauncherProcessIndex index = LauncherProcessIndex.getInstance(context);
+        if (action.equals(Intent.ACTION_PACKAGE_REMOVED)) {
+            // An update sends REMOVED then ADDED with EXTRA_REPLACING. Wait for the ADDED.
+            if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false))
+                index.onPackageRemoved(packageName);
+        }
+        else {
+            index.onPackageChanged(packageName);
+        }
+    }
+}
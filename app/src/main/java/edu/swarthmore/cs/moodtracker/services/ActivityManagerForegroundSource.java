@@ -0,0 +1,88 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+
+import java.util.List;
+
+/**
+ * Foreground source backed by ActivityManager, with package metadata from a
+ * PackageMetadataCache. This is what AppUsageTracker uses on a device.
+ */
+public class ActivityManagerForegroundSource implements ForegroundSource {
+
+    private final ActivityManager mActivityManager;
+    private final LauncherProcessIndex mLauncherIndex;
+    private final PackageMetadataCache mPackageCache;
+    private final TrackMetrics mMetrics;
+
+    /**
+     * Construct a foreground source.
+     * @param activityManager Used to list running processes.
+     * @param launcherIndex Tells which processes belong to launcher apps.
+     * @param packageCache Used to look up package metadata.
+     * @param metrics Where to record how long process queries take.
+     */
+    public ActivityManagerForegroundSource(ActivityManager activityManager, LauncherProcessIndex launcherIndex,
+                                           PackageMetadataCache packageCache, TrackMetrics metrics) {
+        mActivityManager = activityManager;
+        mLauncherIndex = launcherIndex;
+        mPackageCache = packageCache;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public String getForegroundProcess() {
+        long queryStart = System.nanoTime();
+        List<RunningAppProcessInfo> appProcesses = mActivityManager.getRunningAppProcesses();
+        mMetrics.recordProcessQuery(System.nanoTime() - queryStart);
+        if (appProcesses == null)
+            return null;
+
+        for(RunningAppProcessInfo appProcessInfo : appProcesses){
+            // Skip non-foreground processes.
+            if (appProcessInfo.importance != RunningAppProcessInfo.IMPORTANCE_FOREGROUND)
+                continue;
+
+            // If this process is important because it's a provider / service of a foreground app,
+            // then also ignore it. For example, com.android.providers.calendar will have
+            // foreground importance when user is using com.google.android.calendar , because
+            // it's the provider of the calendar app.
+            if (isProviderOrService(appProcessInfo))
+                continue;
+
+            // Get the package info of this process
+            String processName = appProcessInfo.processName;
+
+            // If the first non-service foreground process is not a launcher app, then we are most
+            // likely in the launcher itself, or the settings page. Break in here.
+            // See LauncherProcessIndex for more details.
+            if(! mLauncherIndex.contains(processName))
+                return null;
+
+            // Make sure the package is still installed. This is a cache lookup, not a binder call,
+            // also for processes that have no package of their own name.
+            if (mPackageCache.get(processName) == null)
+                continue;
+
+            // We have found a foreground launcher app.
+            return processName;
+        }
+        return null;
+    }
+
+    @Override
+    public PackageMetadataCache.PackageMetadata getMetadata(String processName) {
+        return mPackageCache.get(processName);
+    }
+
+    /**
+     * Decide whether this app process is a provider or service.
+     * @param appProcessInfo Information of the running process.
+     * @return Boolean True if this process is a service or provider, false otherwise.
+     */
+    private boolean isProviderOrService(RunningAppProcessInfo appProcessInfo) {
+        return (appProcessInfo.importanceReasonCode == RunningAppProcessInfo.REASON_PROVIDER_IN_USE ||
+                appProcessInfo.importanceReasonCode == RunningAppProcessInfo.REASON_SERVICE_IN_USE);
+    }
+}
@@ -0,0 +1,69 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+/**
+ * Sampling policy that backs off while the user stays in the same app, and tightens again as soon
+ * as the foreground app changes.
+ * Starting from mMinInterval, the interval is multiplied by mBackoffFactor after every
+ * mStableSamples samples that found the same foreground app, up to mMaxInterval.
+ * A change of foreground app resets the interval to mMinInterval.
+ */
+public class AdaptiveSamplingPolicy implements SamplingPolicy {
+
+    public static final long DEFAULT_MIN_INTERVAL = 1000;
+    public static final long DEFAULT_MAX_INTERVAL = 8000;
+    public static final int DEFAULT_BACKOFF_FACTOR = 2;
+    public static final int DEFAULT_STABLE_SAMPLES = 3;
+
+    private final long mMinInterval;
+    private final long mMaxInterval;
+    private final int mBackoffFactor;
+    private final int mStableSamples;
+
+    // Number of consecutive samples that found the same foreground app.
+    private int mUnchangedCount = 0;
+
+    /**
+     * Construct an adaptive policy with the default parameters.
+     */
+    public AdaptiveSamplingPolicy() {
+        this(DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_BACKOFF_FACTOR, DEFAULT_STABLE_SAMPLES);
+    }
+
+    /**
+     * Construct an adaptive policy.
+     * @param minInterval Shortest interval in milliseconds, used right after a foreground change.
+     * @param maxInterval Longest interval in milliseconds. This bounds how late a change is noticed.
+     * @param backoffFactor The interval is multiplied by this value each time it backs off.
+     * @param stableSamples Number of unchanged samples needed before each back off.
+     */
+    public AdaptiveSamplingPolicy(long minInterval, long maxInterval, int backoffFactor, int stableSamples) {
+        if (minInterval <= 0 || maxInterval < minInterval || backoffFactor < 1 || stableSamples < 1)
+            throw new IllegalArgumentException("Invalid adaptive sampling parameters");
+
+        mMinInterval = minInterval;
+        mMaxInterval = maxInterval;
+        mBackoffFactor = backoffFactor;
+        mStableSamples = stableSamples;
+    }
+
+    @Override
+    public long getInitialInterval() {
+        mUnchangedCount = 0;
+        return mMinInterval;
+    }
+
+    @Override
+    public long getNextInterval(long lastInterval, boolean foregroundChanged) {
+        if (foregroundChanged) {
+            mUnchangedCount = 0;
+            return mMinInterval;
+        }
+
+        mUnchangedCount++;
+        if (mUnchangedCount < mStableSamples)
+            return Math.max(lastInterval, mMinInterval);
+
+        mUnchangedCount = 0;
+        return Math.min(lastInterval * mBackoffFactor, mMaxInterval);
+    }
+}
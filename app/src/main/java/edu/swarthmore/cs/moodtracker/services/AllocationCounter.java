@@ -0,0 +1,35 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+/**
+ * Counts the objects allocated on the calling thread while a measurement runs.
+ * TraceReplayDriver uses it to measure allocations per simulated hour. On a device that is
+ * DebugAllocationCounter; where allocations can't be counted, e.g. in tests on a JVM, the
+ * replay runs with NONE.
+ */
+public interface AllocationCounter {
+
+    /**
+     * Counter for when allocations can't be counted. Always counts 0.
+     */
+    public static final AllocationCounter NONE = new AllocationCounter() {
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public long stop() {
+            return 0;
+        }
+    };
+
+    /**
+     * Start counting from 0.
+     */
+    public void start();
+
+    /**
+     * Stop counting.
+     * @return The number of objects allocated on this thread since start().
+     */
+    public long stop();
+}
@@ -0,0 +1,113 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
+
+/**
+ * Immutable view of today's app usage, published by TrackService's tracking thread for clients
+ * on other threads. Entries are stored as parallel arrays, one index per app.
+ *
+ * A new snapshot is published whenever the daily totals change, i.e. when a session opens or
+ * closes or the day changes, so the tracker doesn't allocate on every sample. Every snapshot has a
+ * larger version than the one before, so clients can skip recomputing when the version they
+ * used last is still current. The only thing that changes without a new version is the running
+ * time of the open session, which is added when a client reads the snapshot. See hasOpenSession().
+ */
+public class AppUsageSnapshot {
+    private final long mVersion;
+    private final long mDate;
+    private final String[] mPackageNames;
+    private final String[] mAppNames;
+    private final int[] mUsageSec;
+    // Index of the app whose session is open, or -1.
+    private final int mOpenIndex;
+    // SystemClock.elapsedRealtime() at which mUsageSec[mOpenIndex] was last exact.
+    private final long mOpenSessionStartTime;
+
+    /**
+     * Construct a snapshot.
+     * @param version Version of this snapshot. Must grow with every snapshot published.
+     * @param date Day the snapshot belongs to, in days since epoch.
+     * @param entries Today's usage entries, not counting the open session.
+     * @param openPackage Package of the open session, or null if there is none.
+     * @param openSessionStartTime SystemClock.elapsedRealtime() when the open session started.
+     */
+    public AppUsageSnapshot(long version, long date, Collection<AppUsageEntry> entries,
+                            String openPackage, long openSessionStartTime) {
+        int size = entries.size();
+        mVersion = version;
+        mDate = date;
+        mPackageNames = new String[size];
+        mAppNames = new String[size];
+        mUsageSec = new int[size];
+
+        int openIndex = -1, i = 0;
+        for (AppUsageEntry entry : entries) {
+            mPackageNames[i] = entry.PackageName;
+            mAppNames[i] = entry.AppName;
+            mUsageSec[i] = entry.UsageTimeSec;
+            if (openPackage != null && openPackage.equals(entry.PackageName))
+                openIndex = i;
+            i++;
+        }
+        mOpenIndex = openIndex;
+        mOpenSessionStartTime = openSessionStartTime;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public long getDate() {
+        return mDate;
+    }
+
+    public int size() {
+        return mPackageNames.length;
+    }
+
+    public String getPackageName(int index) {
+        return mPackageNames[index];
+    }
+
+    public String getAppName(int index) {
+        return mAppNames[index];
+    }
+
+    /**
+     * Check whether an app is in foreground, i.e. whether reading the same snapshot later can
+     * give larger usage times.
+     * @return True if a session is open.
+     */
+    public boolean hasOpenSession() {
+        return mOpenIndex >= 0;
+    }
+
+    /**
+     * Get the usage time of an app, including the running time of its open session.
+     * @param index Index of the app.
+     * @param now The SystemClock.elapsedRealtime() to count the open session up to.
+     * @return The usage time in seconds.
+     */
+    public int getUsageSec(int index, long now) {
+        if (index != mOpenIndex)
+            return mUsageSec[index];
+        return mUsageSec[index] + (int) (Math.max(0, now - mOpenSessionStartTime) / 1000);
+    }
+
+    /**
+     * Get today's usage as a list the caller owns and may modify.
+     * @param now The SystemClock.elapsedRealtime() to count the open session up to.
+     * @return A list of new AppUsageEntry objects.
+     */
+    public List<AppUsageEntry> toEntryList(long now) {
+        ArrayList<AppUsageEntry> result = new ArrayList<AppUsageEntry>(mPackageNames.length);
+        for (int i = 0; i < mPackageNames.length; i++) {
+            result.add(new AppUsageEntry(mPackageNames[i], mAppNames[i], getUsageSec(i, now), mDate));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,641 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+
+import edu.swarthmore.cs.moodtracker.db.AppSession;
+import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
+import edu.swarthmore.cs.moodtracker.db.FlushStats;
+import edu.swarthmore.cs.moodtracker.db.ReadAppUsageTask;
+import edu.swarthmore.cs.moodtracker.db.SaveAppUsageTask;
+import edu.swarthmore.cs.moodtracker.db.TrackDatabase;
+import edu.swarthmore.cs.moodtracker.util.AppIconCache;
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Tracks how long each launcher app is in foreground, per day.
+ * Samples the foreground app on every tick, with the interval decided by a SamplingPolicy,
+ * journals sessions for crash safety and saves changed entries to the database every minute.
+ * Clients on other threads read published AppUsageSnapshots.
+ */
+public class AppUsageTracker implements Tracker {
+
+    public static final String TAG = "AppUsageTracker";
+    public static final String JOURNAL_FILE_NAME = "usage.journal";
+    // A sample later than this past its interval means the device stalled or slept, so the
+    // open session is only credited up to the expected sample time.
+    public static final long MAX_TICK_LATENESS = 30 * 1000;
+    // How early or late a sample may be taken, so it can share a wakeup with other trackers.
+    public static final long TICK_SLACK = 250;
+
+    private final Context mContext;
+    // Database that stores all tracking information
+    private final TrackDatabase mDatabase;
+    private final TrackMetrics mMetrics;
+
+    /* Threading Variables */
+    // Handler of the tracking thread, which owns every tracking variable below.
+    private final Handler mHandler;
+    // Handler of the main thread. AsyncTasks are started from there.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private TrackerScheduler mScheduler = null;
+
+    /* Timer and Date Variables  */
+    private SamplingPolicy mSamplingPolicy = new AdaptiveSamplingPolicy();
+    private long mTimerInterval = 0;
+    // SystemClock.elapsedRealtime() of the last sample, or 0 if not ticking.
+    private long mLastSampleTime = 0;
+    private final long mSaveInterval = 60 * 1000;
+    private long mLastSaveTime = 0;
+    // Rolls the day over at the next local midnight.
+    private final Runnable mDayChangeCallback;
+
+    /* App Usage Tracking Variables */
+    private final PackageMetadataCache mPackageCache;
+    private final ForegroundSource mForegroundSource;
+    // Sessions and today's usage. Null until today's usage is loaded from database.
+    private UsageAccounting mAccounting = null;
+    // Past days whose last save failed. Saved again with the next save.
+    private ArrayList<DailyUsage> mRetiredDays = new ArrayList<DailyUsage>();
+    // Saves handed to a SaveAppUsageTask that have not finished yet.
+    private final ArrayList<PendingFlush> mPendingFlushes = new ArrayList<PendingFlush>();
+    // Result of the last finished save. Read by clients.
+    private volatile FlushStats mLastFlushStats = null;
+    // Today's usage as last published for clients. Null until loaded from database.
+    private volatile AppUsageSnapshot mSnapshot = null;
+    private long mSnapshotVersion = 0;
+    // Crash-safe record of sessions since the last save. Null if the journal file can't be used.
+    private UsageJournal mJournal = null;
+
+    /**
+     * Construct the tracker. Nothing is loaded until onStart().
+     * @param context Used to reach system services, files and the database.
+     * @param handler Handler of the tracking thread.
+     * @param metrics Where to record what tracking costs.
+     */
+    public AppUsageTracker(Context context, Handler handler, TrackMetrics metrics) {
+        mContext = context;
+        mDatabase = TrackDatabase.getInstance(context);
+        mHandler = handler;
+        mMetrics = metrics;
+
+        // Sample foreground apps from activity manager, with metadata from package manager.
+        // Loading the launcher app filter is cheap unless the persisted index is stale.
+        mPackageCache = new PackageMetadataCache(context.getPackageManager(), PackageMetadataCache.DEFAULT_MAX_ENTRIES);
+        mForegroundSource = new ActivityManagerForegroundSource(
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE),
+                LauncherProcessIndex.getInstance(context), mPackageCache, mMetrics);
+
+        // Roll the day over right at midnight, whether or not a tick is due.
+        mDayChangeCallback = new Runnable() {
+            @Override
+            public void run() {
+                checkForNewDay(SystemClock.elapsedRealtime());
+                scheduleDayChange();
+            }
+        };
+    }
+
+
+    /*------------------*/
+    /* Tracker Methods  */
+    /*------------------*/
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public void onStart(TrackerScheduler scheduler, long now) {
+        mScheduler = scheduler;
+        mLastSaveTime = now;
+
+        // Read back sessions that were not saved before the previous process died.
+        final List<UsageJournal.Record> journalRecords = openJournal();
+
+        // Read existing usage entries from database (asynchronously), then start sampling on the
+        // tracking thread. If midnight passes meanwhile, the first tick rolls the day over.
+        // AsyncTasks have to be started on the main thread.
+        final long currentDate = TrackDateUtil.getDaysSinceEpoch();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                new ReadAppUsageTask(mContext) {
+                    @Override
+                    public void onFinish(final List<AppUsageEntry> result) {
+                        Log.d(TAG, "Loaded app usage from database");
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onAppUsageLoaded(currentDate, result, journalRecords);
+                            }
+                        });
+                    }
+                }.execute(currentDate, currentDate);
+            }
+        });
+    }
+
+    @Override
+    public void onResume(long now) {
+        mTimerInterval = 0;
+        mLastSampleTime = 0;
+    }
+
+    @Override
+    public long onTick(long now) {
+        // Nothing to sample until today's usage is loaded. onAppUsageLoaded() asks for a tick.
+        if (mAccounting == null)
+            return mSamplingPolicy.getInitialInterval();
+
+        checkForNewDay(now);
+        capLateSession(now);
+        boolean foregroundChanged = mAccounting.sample(now, System.currentTimeMillis());
+        if (foregroundChanged)
+            publishSnapshot();
+        mLastSampleTime = now;
+
+        // Save data to database every mSaveInterval milliseconds, or earlier if the
+        // journal has no room left. Not while a save is running: the journal stays full until
+        // that save finishes, and if it fails, the next tick tries again.
+        if (mPendingFlushes.isEmpty()
+                && (now - mLastSaveTime >= mSaveInterval || (mJournal != null && mJournal.isFull()))) {
+            flushAppUsage(false);
+        }
+
+        mTimerInterval = (mTimerInterval <= 0) ? mSamplingPolicy.getInitialInterval()
+                : mSamplingPolicy.getNextInterval(mTimerInterval, foregroundChanged);
+        return mTimerInterval;
+    }
+
+    @Override
+    public long getTickSlack() {
+        return TICK_SLACK;
+    }
+
+    /**
+     * Stop sampling until the next resume, e.g. because the screen turned off.
+     * The open session is closed now.
+     */
+    @Override
+    public void onPause(long now) {
+        mTimerInterval = 0;
+        mLastSampleTime = 0;
+        if (mAccounting == null)
+            return;
+        mAccounting.closeSession(now);
+        publishSnapshot();
+    }
+
+    /**
+     * Close the open session and save synchronously, since the tracking thread is gone once
+     * this returns. Async saves that didn't finish are taken over by this save first, so none of
+     * them can overwrite its newer totals afterwards.
+     */
+    @Override
+    public void onStop(long now) {
+        mHandler.removeCallbacks(mDayChangeCallback);
+        if (mAccounting != null)
+            mAccounting.closeSession(now);
+        for (PendingFlush flush : new ArrayList<PendingFlush>(mPendingFlushes)) {
+            flush.cancel();
+        }
+        flushAppUsage(true);
+    }
+
+    @Override
+    public void dump(PrintWriter writer) {
+        writer.println("PackageManager lookups: " + mPackageCache.getLoadCount());
+        writer.println("Last flush: " + mLastFlushStats);
+    }
+
+
+    /*---------------------------*/
+    /* Loading and Date Methods  */
+    /*---------------------------*/
+
+    /**
+     * Start accounting once today's usage is loaded from database.
+     * @param date The day that was loaded.
+     * @param entries Today's usage entries from database.
+     * @param journalRecords Sessions read back from the journal.
+     */
+    private void onAppUsageLoaded(long date, List<AppUsageEntry> entries, List<UsageJournal.Record> journalRecords) {
+        DailyUsage today = new DailyUsage(date);
+        for (AppUsageEntry entry:entries) {
+            today.Entries.put(entry.PackageName, entry);
+        }
+        mAccounting = new UsageAccounting(mForegroundSource, today);
+        mAccounting.setJournal(mJournal);
+        TreeMap<Long, DailyUsage> pastDays = loadPastDays(date, journalRecords);
+        int replayed = mAccounting.replayJournal(journalRecords, pastDays);
+        Log.d(TAG, "Replayed " + replayed + " of " + journalRecords.size() + " journaled sessions");
+
+        // Sessions of earlier days are saved right away, oldest day first.
+        for (DailyUsage day : pastDays.values()) {
+            if (day.isDirty())
+                mRetiredDays.add(day);
+        }
+        if (!mRetiredDays.isEmpty())
+            flushAppUsage(false);
+
+        publishSnapshot();
+        scheduleDayChange();
+        mScheduler.requestTick(this);
+    }
+
+    /**
+     * Load what the database has stored of the earlier days that have unsaved journaled sessions,
+     * e.g. because the process died right after midnight. This only happens after a crash and
+     * nothing is sampled yet, so the days are read on the tracking thread.
+     * @param today Today, in days since epoch.
+     * @param journalRecords Sessions read back from the journal.
+     * @return The stored usage of those days by date. Empty if every session is from today.
+     */
+    private TreeMap<Long, DailyUsage> loadPastDays(long today, List<UsageJournal.Record> journalRecords) {
+        TreeMap<Long, DailyUsage> pastDays = new TreeMap<Long, DailyUsage>();
+        long firstDate = today;
+        for (UsageJournal.Record record : journalRecords) {
+            if (record.getUnflushedMs() > 0)
+                firstDate = Math.min(firstDate, TrackDateUtil.getDaysSinceEpoch(record.StartMs));
+        }
+        if (firstDate >= today)
+            return pastDays;
+
+        for (AppUsageEntry entry : mDatabase.readAppUsage(firstDate, today - 1)) {
+            DailyUsage day = pastDays.get(entry.DaysSinceEpoch);
+            if (day == null) {
+                day = new DailyUsage(entry.DaysSinceEpoch);
+                pastDays.put(entry.DaysSinceEpoch, day);
+            }
+            day.Entries.put(entry.PackageName, entry);
+        }
+        return pastDays;
+    }
+
+    /**
+     * Open the usage journal and read back the sessions it holds.
+     * Tracking still works without the journal, we just lose crash safety.
+     * @return The journaled sessions, or an empty list.
+     */
+    private List<UsageJournal.Record> openJournal() {
+        try {
+            mJournal = new UsageJournal(new File(mContext.getFilesDir(), JOURNAL_FILE_NAME));
+            return mJournal.replay();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Cannot open usage journal: " + e.toString());
+            mJournal = null;
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Close the open session at the time it should have been sampled, if this sample is much
+     * later than scheduled. We can't tell whether the app stayed in foreground while the thread
+     * was stalled or the device slept, so that time is not credited. The next sample opens a new
+     * session if the app is still there.
+     * @param now The SystemClock.elapsedRealtime() of the current tick.
+     */
+    private void capLateSession(long now) {
+        if (mAccounting.getOpenSession() == null || mLastSampleTime <= 0)
+            return;
+        long expected = mLastSampleTime + mTimerInterval;
+        if (now - expected > MAX_TICK_LATENESS) {
+            Log.w(TAG, "Sample is " + (now - expected) + " ms late, cap the open session");
+            mAccounting.closeSession(expected);
+            publishSnapshot();
+        }
+    }
+
+    /**
+     * Schedule mDayChangeCallback at the next local midnight. The delay is measured in uptime,
+     * so it is late if the device sleeps, in which case the next tick rolls the day over.
+     */
+    private void scheduleDayChange() {
+        long wallNow = System.currentTimeMillis();
+        long delay = TrackDateUtil.getNextMidnightMillis(wallNow) - wallNow;
+        mHandler.removeCallbacks(mDayChangeCallback);
+        mHandler.postAtTime(mDayChangeCallback, SystemClock.uptimeMillis() + Math.max(0, delay));
+    }
+
+    /**
+     * Check whether we just passed 11:59:59 pm. If yes, split the open session at midnight,
+     * save yesterday's data to database and start today's data.
+     * @param now The SystemClock.elapsedRealtime() of the current tick.
+     */
+    private void checkForNewDay(long now) {
+        if (mAccounting == null)
+            return;
+        long wallNow = System.currentTimeMillis();
+        long newDate = TrackDateUtil.getDaysSinceEpoch(wallNow);
+        // If the clock was set back, keep counting into the current day rather than starting
+        // over a day that is already saved.
+        if (newDate <= mAccounting.getToday().Date)
+            return;
+        Log.d(TAG, "newDay");
+
+        // Swap in the new day. Saves of yesterday, including ones still running, only see the
+        // old DailyUsage.
+        DailyUsage yesterday = mAccounting.rollOver(newDate, now, wallNow);
+        flushDay(yesterday, false);
+        publishSnapshot();
+    }
+
+    /**
+     * Called on the tracking thread when the system time or time zone changed.
+     * @param timeZoneChanged True if the time zone changed.
+     */
+    public void onTimeChanged(boolean timeZoneChanged) {
+        if (timeZoneChanged)
+            TrackDateUtil.refreshTimeZone();
+        checkForNewDay(SystemClock.elapsedRealtime());
+        scheduleDayChange();
+    }
+
+    /**
+     * Called on the tracking thread when a package was added, replaced or removed.
+     * @param packageName The name of the package.
+     */
+    public void onPackageChanged(String packageName) {
+        mPackageCache.invalidatePackage(packageName);
+        AppIconCache.getInstance(mContext).invalidate(packageName);
+
+        // An updated app gets its new name and icon right away, and saved with the next flush.
+        if (mAccounting != null && mAccounting.refreshAppInfo(packageName))
+            publishSnapshot();
+    }
+
+    /**
+     * Replace the policy that decides how often the foreground app is sampled.
+     * Takes effect after the next sample. Can be called from any thread.
+     * @param policy The new sampling policy.
+     */
+    public void setSamplingPolicy(final SamplingPolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("Sampling policy cannot be null");
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSamplingPolicy = policy;
+                mTimerInterval = 0;
+            }
+        });
+    }
+
+
+    /*-------------------*/
+    /* Database Methods  */
+    /*-------------------*/
+
+    /**
+     * Write app usage data to database (i.e. disk) to store them permanently.
+     * Can be called from any thread. The save itself is done by the tracking thread.
+     */
+    public void saveDataToDatabase() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushAppUsage(false);
+            }
+        });
+    }
+
+    /**
+     * Everything one save hands over to the database, and what to do once it is written.
+     */
+    private class PendingFlush {
+        final ArrayList<AppUsageEntry> Entries;
+        final ArrayList<AppSession> Sessions;
+        final HashSet<String> DirtyPackages;
+        final DailyUsage Day;
+        // Journal records this save writes. See UsageJournal.checkpoint().
+        final long JournalStart;
+        final long JournalEnd;
+        final long FlushedMs;
+        // Set by cancel(). Guarded by this PendingFlush, which is held while it is written.
+        private boolean mCancelled = false;
+
+        PendingFlush(DailyUsage day, ArrayList<AppUsageEntry> entries, ArrayList<AppSession> sessions,
+                     HashSet<String> dirtyPackages, long flushedMs) {
+            Entries = entries;
+            Sessions = sessions;
+            DirtyPackages = dirtyPackages;
+            Day = day;
+            JournalStart = day.JournalStart;
+            JournalEnd = (mJournal != null) ? Math.min(mJournal.getMark(), day.JournalEnd) : 0;
+            FlushedMs = flushedMs;
+            // The next save of this day starts after these records, unless this one fails.
+            day.JournalStart = JournalEnd;
+        }
+
+        /**
+         * Called on the tracking thread once the save is done.
+         * @param stats The result of the save.
+         */
+        void onFinish(FlushStats stats) {
+            mPendingFlushes.remove(this);
+            // A cancelled save was already handed back, and written by a later one.
+            if (mCancelled)
+                return;
+
+            Log.d(TAG, "App usage saved to database: " + stats);
+            mLastFlushStats = stats;
+            mMetrics.recordFlush(stats.LatencyMs, stats.Success);
+            if (stats.Success) {
+                // The journaled records of this save can be dropped now.
+                if (mJournal != null)
+                    mJournal.checkpoint(JournalStart, JournalEnd, FlushedMs);
+            }
+            else {
+                requeue();
+            }
+        }
+
+        /**
+         * Write this save to the database, unless it was cancelled. Called by its
+         * SaveAppUsageTask.
+         * @return The result of the save, or null if it was cancelled.
+         */
+        FlushStats write() {
+            synchronized (this) {
+                if (mCancelled)
+                    return null;
+                return mDatabase.writeAppUsageBatch(Entries, Sessions);
+            }
+        }
+
+        /**
+         * Hand this save back to the next one. Called on the tracking thread. Waits if the task
+         * is writing right now; a task that didn't start yet won't write anything.
+         */
+        void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+            }
+            mPendingFlushes.remove(this);
+            requeue();
+        }
+
+        /**
+         * Hand the data of this save back to its day, so the next save writes it. Entries are
+         * copied again then, so they include whatever changed in between.
+         */
+        private void requeue() {
+            Day.DirtyPackages.addAll(DirtyPackages);
+            Day.ClosedSessions.addAll(0, Sessions);
+            // Keep the journaled records until the next save of this day writes them.
+            Day.JournalStart = Math.min(Day.JournalStart, JournalStart);
+            if (Day != mAccounting.getToday() && !mRetiredDays.contains(Day))
+                mRetiredDays.add(Day);
+        }
+    }
+
+    /**
+     * Hand the entries and sessions that changed since the last save over to the database.
+     * Must be called on the tracking thread.
+     * @param synchronous True to write on this thread before returning, false to write in a
+     *                    SaveAppUsageTask.
+     */
+    private void flushAppUsage(boolean synchronous) {
+        mLastSaveTime = SystemClock.elapsedRealtime();
+
+        // Past days whose save failed go first.
+        if (!mRetiredDays.isEmpty()) {
+            ArrayList<DailyUsage> retiredDays = mRetiredDays;
+            mRetiredDays = new ArrayList<DailyUsage>();
+            for (DailyUsage day : retiredDays) {
+                flushDay(day, synchronous);
+            }
+        }
+        if (mAccounting != null)
+            flushDay(mAccounting.getToday(), synchronous);
+    }
+
+    /**
+     * Hand the entries and sessions of one day that changed since its last save over to the
+     * database. Must be called on the tracking thread.
+     * @param day The day to save. Either today or a day that already ended.
+     * @param synchronous True to write on this thread before returning, false to write in a
+     *                    SaveAppUsageTask.
+     */
+    private void flushDay(DailyUsage day, boolean synchronous) {
+        long now = SystemClock.elapsedRealtime();
+
+        // Hand closed sessions over to the task. The open session is saved with its current end
+        // time, and is overwritten by later saves until it closes.
+        ArrayList<AppSession> sessions = day.ClosedSessions;
+        day.ClosedSessions = new ArrayList<AppSession>();
+        long flushedMs = Long.MIN_VALUE;
+        AppSession openSession = mAccounting.getOpenSession();
+        if (day == mAccounting.getToday() && openSession != null) {
+            flushedMs = mAccounting.getOpenSessionEndMs(now);
+            sessions.add(new AppSession(openSession.PackageName, openSession.StartMs, flushedMs));
+            day.DirtyPackages.add(openSession.PackageName);
+        }
+
+        // Only write the entries that changed since the last save.
+        HashSet<String> dirtyPackages = day.DirtyPackages;
+        day.DirtyPackages = new HashSet<String>();
+        ArrayList<AppUsageEntry> entries = new ArrayList<AppUsageEntry>(dirtyPackages.size());
+        for (String packageName : dirtyPackages) {
+            AppUsageEntry entry = day.Entries.get(packageName);
+            if (entry != null)
+                entries.add(mAccounting.copyAppUsageEntry(entry, now));
+        }
+
+        if (entries.isEmpty() && sessions.isEmpty())
+            return;
+
+        final PendingFlush flush = new PendingFlush(day, entries, sessions, dirtyPackages, flushedMs);
+        if (synchronous) {
+            flush.onFinish(mDatabase.writeAppUsageBatch(entries, sessions));
+            return;
+        }
+
+        // AsyncTasks have to be started on the main thread. Their result is brought back here.
+        mPendingFlushes.add(flush);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                new SaveAppUsageTask(mContext, flush.Entries, flush.Sessions) {
+                    @Override
+                    protected FlushStats doInBackground(Integer... params) {
+                        return flush.write();
+                    }
+
+                    @Override
+                    public void onFinish(final FlushStats stats) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                flush.onFinish(stats);
+                            }
+                        });
+                    }
+                }.execute();
+            }
+        });
+    }
+
+    /**
+     * Get the result of the last finished database save.
+     * @return How many rows the save wrote and how long it took, or null if nothing was saved yet.
+     */
+    public FlushStats getLastFlushStats() {
+        return mLastFlushStats;
+    }
+
+
+    /*------------------*/
+    /* Client Methods   */
+    /*------------------*/
+
+    /**
+     * Get the current app usage info. Safe to call from any thread. The entries are built from
+     * the last published snapshot and belong to the caller.
+     * @return A list of AppUsageEntry objects, or null if today's usage is not loaded yet.
+     */
+    public List<AppUsageEntry> getTodayAppUsage() {
+        AppUsageSnapshot snapshot = mSnapshot;
+        if (snapshot == null)
+            return null;
+        return snapshot.toEntryList(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Get the last published snapshot of today's usage. Safe to call from any thread.
+     * Compare AppUsageSnapshot.getVersion() with the version used last time to tell whether
+     * anything changed.
+     * @return The snapshot, or null if today's usage is not loaded yet.
+     */
+    public AppUsageSnapshot getAppUsageSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Publish today's usage for clients. Called on the tracking thread whenever the daily totals
+     * or the open session change.
+     */
+    private void publishSnapshot() {
+        mSnapshotVersion++;
+        AppSession openSession = mAccounting.getOpenSession();
+        DailyUsage today = mAccounting.getToday();
+        mSnapshot = new AppUsageSnapshot(mSnapshotVersion, today.Date, today.Entries.values(),
+                (openSession != null) ? openSession.PackageName : null, mAccounting.getOpenSessionStartTime());
+    }
+}
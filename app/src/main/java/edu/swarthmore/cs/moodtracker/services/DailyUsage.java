@@ -0,0 +1,44 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import edu.swarthmore.cs.moodtracker.db.AppSession;
+import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
+
+/**
+ * Everything AppUsageTracker accumulates for one day: the usage entries, the packages changed
+ * since the last save and the sessions closed since the last save.
+ * At midnight the tracker starts a new DailyUsage instead of clearing this one, so saves that
+ * are still running for the old day keep writing to the old day.
+ * Only used on the tracking thread.
+ */
+class DailyUsage {
+    public final long Date;
+    public final HashMap<String, AppUsageEntry> Entries = new HashMap<String, AppUsageEntry>();
+    // Packages whose entry changed since the last save. Only these are written.
+    public HashSet<String> DirtyPackages = new HashSet<String>();
+    // Sessions closed since the last save.
+    public ArrayList<AppSession> ClosedSessions = new ArrayList<AppSession>();
+    // Journal mark of the first record of this day not handed to a save yet. See UsageJournal.
+    public long JournalStart = 0;
+    // Journal mark after the last record of this day, once the day ended.
+    public long JournalEnd = Long.MAX_VALUE;
+
+    /**
+     * Construct an empty day.
+     * @param date The day, in days since epoch.
+     */
+    public DailyUsage(long date) {
+        Date = date;
+    }
+
+    /**
+     * Check whether this day has changes that are not saved yet.
+     * @return True if there is something to save.
+     */
+    public boolean isDirty() {
+        return !DirtyPackages.isEmpty() || !ClosedSessions.isEmpty();
+    }
+}
@@ -0,0 +1,22 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import android.os.Debug;
+
+/**
+ * Allocation counter backed by the runtime's per-thread allocation count.
+ * Only works on Android, and counting slows allocations down, so it is only for diagnostics.
+ */
+public class DebugAllocationCounter implements AllocationCounter {
+
+    @Override
+    public void start() {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+    }
+
+    @Override
+    public long stop() {
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocCount();
+    }
+}
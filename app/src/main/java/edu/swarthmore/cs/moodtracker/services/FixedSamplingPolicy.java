@@ -0,0 +1,30 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+/**
+ * Sampling policy that always uses the same interval. This is how TrackService used to sample,
+ * and is useful when accuracy matters more than battery.
+ */
+public class FixedSamplingPolicy implements SamplingPolicy {
+
+    private final long mInterval;
+
+    /**
+     * Construct a fixed policy.
+     * @param interval The sampling interval in milliseconds.
+     */
+    public FixedSamplingPolicy(long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("Sampling interval must be positive");
+        mInterval = interval;
+    }
+
+    @Override
+    public long getInitialInterval() {
+        return mInterval;
+    }
+
+    @Override
+    public long getNextInterval(long lastInterval, boolean foregroundChanged) {
+        return mInterval;
+    }
+}
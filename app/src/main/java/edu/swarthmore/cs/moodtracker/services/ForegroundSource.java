@@ -0,0 +1,23 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+/**
+ * Where usage accounting learns which app is in foreground and what that app is called.
+ * On a device this is ActivityManager and PackageManager, see ActivityManagerForegroundSource.
+ * TraceReplayForegroundSource replays recorded traces instead, so accounting can be load tested
+ * and benchmarked without a device.
+ */
+public interface ForegroundSource {
+
+    /**
+     * Find the launcher app that is currently in foreground.
+     * @return The process name of the foreground launcher app, or null if there is none.
+     */
+    public String getForegroundProcess();
+
+    /**
+     * Get the metadata of an app.
+     * @param processName The process name of the app.
+     * @return The metadata, or null if the app cannot be found.
+     */
+    public PackageMetadataCache.PackageMetadata getMetadata(String processName);
+}
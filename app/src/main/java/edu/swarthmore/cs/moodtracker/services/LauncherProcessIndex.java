@@ -0,0 +1,211 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.swarthmore.cs.moodtracker.R;
+
+/**
+ * Index of the process names of launcher apps. Only process names in this index are tracked.
+ * We only want to track apps whose icons show in Launcher, because these are the apps that
+ * user is aware of. We don't need things like "NFC Service" or "ASUS Keyboard", even if sometimes
+ * they have foreground importance.
+ *
+ * Building the index means resolving every launcher activity, which gets slower the more apps are
+ * installed. So the index is persisted in SharedPreferences together with a fingerprint, loaded
+ * from there when TrackService starts, and kept up to date one package at a time from package
+ * broadcasts (see PackageChangeReceiver). It is only rebuilt from scratch when the fingerprint
+ * no longer matches, e.g. after a system update. Broadcasts are not delivered while the app is
+ * force-stopped, so the fingerprint also holds the number of installed packages and their
+ * newest update time, which change when packages are installed, updated or removed meanwhile.
+ */
+public class LauncherProcessIndex {
+    public static final String TAG = "LauncherProcessIndex";
+
+    private static final String PREFS_NAME = "launcher_process_index";
+    private static final String PREF_FINGERPRINT = "fingerprint";
+    private static final String PREF_ENTRIES = "entries";
+    // Separates package name and process name in a persisted entry.
+    private static final String ENTRY_DELIM = "/";
+
+    // Private factory instance.
+    private static LauncherProcessIndex sInstance = null;
+
+    private final PackageManager mPackageManager;
+    private final SharedPreferences mPreferences;
+    private final HashSet<String> mFilteredProcessNames = new HashSet<String>();
+    // Fingerprint of the system image and our filter list. See getFingerprint().
+    private final String mSystemFingerprint;
+
+    // Package name -> process name of every indexed launcher app.
+    private final HashMap<String, String> mPackageProcesses = new HashMap<String, String>();
+    // Read by the sampling loop without locking. Replaced, never modified, on every update.
+    private volatile Set<String> mProcessNames = Collections.emptySet();
+
+    /**
+     * Static factory method to create the LauncherProcessIndex instance or retrieve the existing one.
+     * The index is loaded (or built) on creation.
+     * @param context Used to get the application context.
+     * @return The LauncherProcessIndex instance.
+     */
+    public static synchronized LauncherProcessIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LauncherProcessIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Private constructor, used by static getInstance() method.
+     * @param context The application context.
+     */
+    private LauncherProcessIndex(Context context) {
+        mPackageManager = context.getPackageManager();
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        String[] filtered = context.getResources().getStringArray(R.array.filtered_launcher_process_names);
+        mFilteredProcessNames.addAll(Arrays.asList(filtered));
+
+        // The index stays valid as long as the system image and our filter list don't change.
+        mSystemFingerprint = Build.FINGERPRINT + ENTRY_DELIM + mFilteredProcessNames.hashCode();
+
+        if (!loadSnapshot())
+            rebuild();
+    }
+
+    /**
+     * Check whether a process belongs to a launcher app.
+     * @param processName The name of the process.
+     * @return True if the process should be tracked.
+     */
+    public boolean contains(String processName) {
+        return mProcessNames.contains(processName);
+    }
+
+    /**
+     * Update the index after a package was added, replaced or had its components changed.
+     * Only this package's launcher activities are resolved again.
+     * @param packageName The package that changed.
+     */
+    public synchronized void onPackageChanged(String packageName) {
+        mPackageProcesses.remove(packageName);
+
+        Intent intent = new Intent(Intent.ACTION_MAIN, null);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        intent.setPackage(packageName);
+        addResolveInfos(mPackageManager.queryIntentActivities(intent, 0));
+
+        publishAndSave();
+    }
+
+    /**
+     * Update the index after a package was removed.
+     * @param packageName The package that was removed.
+     */
+    public synchronized void onPackageRemoved(String packageName) {
+        if (mPackageProcesses.remove(packageName) != null)
+            publishAndSave();
+    }
+
+    /**
+     * Build the index from scratch, by resolving all Activities that can be launched from home.
+     */
+    public synchronized void rebuild() {
+        Log.d(TAG, "Rebuilding launcher process index");
+        mPackageProcesses.clear();
+
+        Intent intent = new Intent(Intent.ACTION_MAIN, null);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        addResolveInfos(mPackageManager.queryIntentActivities(intent, 0));
+
+        publishAndSave();
+    }
+
+    /**
+     * Add the apps of resolved launcher activities to mPackageProcesses.
+     * ResolveInfo already carries the ApplicationInfo, so this needs no extra PackageManager calls.
+     * @param resolveInfoList Result of a launcher intent query.
+     */
+    private void addResolveInfos(List<ResolveInfo> resolveInfoList) {
+        if (resolveInfoList == null)
+            return;
+
+        for (ResolveInfo resolveInfo : resolveInfoList) {
+            ApplicationInfo appInfo = resolveInfo.activityInfo.applicationInfo;
+            if (appInfo == null || mFilteredProcessNames.contains(appInfo.processName))
+                continue;
+            mPackageProcesses.put(resolveInfo.activityInfo.packageName, appInfo.processName);
+        }
+    }
+
+    /**
+     * Load the persisted index, if its fingerprint matches.
+     * @return True if the index was loaded, false if it has to be rebuilt.
+     */
+    private synchronized boolean loadSnapshot() {
+        if (!getFingerprint().equals(mPreferences.getString(PREF_FINGERPRINT, null)))
+            return false;
+
+        Set<String> entries = mPreferences.getStringSet(PREF_ENTRIES, null);
+        if (entries == null)
+            return false;
+
+        for (String entry : entries) {
+            int delim = entry.indexOf(ENTRY_DELIM);
+            if (delim <= 0)
+                return false;
+            mPackageProcesses.put(entry.substring(0, delim), entry.substring(delim + 1));
+        }
+
+        mProcessNames = new HashSet<String>(mPackageProcesses.values());
+        Log.d(TAG, "Loaded " + mPackageProcesses.size() + " launcher apps from snapshot");
+        return true;
+    }
+
+    /**
+     * Publish the current index to readers, and persist it together with the fingerprint.
+     */
+    private void publishAndSave() {
+        mProcessNames = new HashSet<String>(mPackageProcesses.values());
+
+        HashSet<String> entries = new HashSet<String>();
+        for (Map.Entry<String, String> entry : mPackageProcesses.entrySet()) {
+            entries.add(entry.getKey() + ENTRY_DELIM + entry.getValue());
+        }
+
+        mPreferences.edit()
+                .putString(PREF_FINGERPRINT, getFingerprint())
+                .putStringSet(PREF_ENTRIES, entries)
+                .apply();
+    }
+
+    /**
+     * Get the fingerprint of what the index was built from: the system image, our filter list,
+     * and the installed packages. Listing the packages is much cheaper than resolving every
+     * launcher activity, since no intents are matched.
+     * @return The fingerprint, to compare with the persisted one.
+     */
+    private String getFingerprint() {
+        List<PackageInfo> packages = mPackageManager.getInstalledPackages(0);
+        long newestUpdateTime = 0;
+        for (PackageInfo packageInfo : packages) {
+            newestUpdateTime = Math.max(newestUpdateTime, packageInfo.lastUpdateTime);
+        }
+        return mSystemFingerprint + ENTRY_DELIM + packages.size() + ENTRY_DELIM + newestUpdateTime;
+    }
+}
@@ -0,0 +1,135 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Bounded cache of package metadata (label and version), keyed by process name.
+ * TrackService samples the foreground app every few seconds. Without this cache, every sample
+ * calls into PackageManager just to check the app still exists, and every new app loads its label
+ * again. Icons are not kept here, so the service holds no bitmaps; see AppIconCache.
+ * Entries are loaded on the first lookup, and must be invalidated when a package
+ * is added, replaced or removed. See invalidatePackage(). Processes without an installed package,
+ * e.g. a ":remote" process of an app, are cached too, so they don't cost a lookup on every sample.
+ */
+public class PackageMetadataCache {
+    public static final String TAG = "PackageMetadataCache";
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    /**
+     * The metadata we keep for one package.
+     */
+    public static class PackageMetadata {
+        public final String PackageName;
+        public final String Label;
+        public final int VersionCode;
+
+        public PackageMetadata(String packageName, String label, int versionCode) {
+            PackageName = packageName;
+            Label = label;
+            VersionCode = versionCode;
+        }
+    }
+
+    /**
+     * Cached result of a process that has no installed package with its name. Keeps the package
+     * part of the process name, so invalidatePackage() drops it once that package is installed.
+     */
+    private static class MissingPackage extends PackageMetadata {
+        MissingPackage(String processName) {
+            super(getPackagePart(processName), null, -1);
+        }
+    }
+
+    private final PackageManager mPackageManager;
+    private final LruCache<String, PackageMetadata> mCache;
+    // Number of times metadata was loaded from PackageManager.
+    private volatile int mLoadCount = 0;
+
+    /**
+     * Construct a cache holding at most maxEntries packages.
+     * @param packageManager Used to load metadata on cache misses.
+     * @param maxEntries Maximum number of packages kept in the cache.
+     */
+    public PackageMetadataCache(PackageManager packageManager, int maxEntries) {
+        mPackageManager = packageManager;
+        mCache = new LruCache<String, PackageMetadata>(maxEntries);
+    }
+
+    /**
+     * Get the metadata of a process, loading it from PackageManager if it is not cached.
+     * @param processName The process name of the app.
+     * @return The metadata, or null if no package with this name is installed.
+     */
+    public PackageMetadata get(String processName) {
+        PackageMetadata metadata = mCache.get(processName);
+        if (metadata == null) {
+            metadata = load(processName);
+            mCache.put(processName, (metadata != null) ? metadata : new MissingPackage(processName));
+        }
+        return (metadata instanceof MissingPackage) ? null : metadata;
+    }
+
+    /**
+     * Drop every cached entry that belongs to a package. Called when the package is
+     * added, replaced or removed.
+     * @param packageName The name of the package that changed.
+     */
+    public void invalidatePackage(String packageName) {
+        mCache.remove(packageName);
+
+        // The process name of an app is usually its package name, but not always.
+        for (Map.Entry<String, PackageMetadata> entry : mCache.snapshot().entrySet()) {
+            if (packageName.equals(entry.getValue().PackageName))
+                mCache.remove(entry.getKey());
+        }
+    }
+
+    /**
+     * Get how many times metadata had to be loaded from PackageManager, i.e. the number of
+     * cache misses.
+     * @return The number of PackageManager lookups.
+     */
+    public int getLoadCount() {
+        return mLoadCount;
+    }
+
+    /**
+     * Drop all cached entries.
+     */
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Get the package part of a process name, e.g. "com.foo" of "com.foo:remote".
+     * @param processName The process name.
+     * @return The process name up to the first ':'.
+     */
+    private static String getPackagePart(String processName) {
+        int colon = processName.indexOf(':');
+        return (colon < 0) ? processName : processName.substring(0, colon);
+    }
+
+    /**
+     * Load the metadata of a process from PackageManager.
+     * @param processName The process name of the app.
+     * @return The metadata, or null if no package with this name is installed.
+     */
+    private PackageMetadata load(String processName) {
+        PackageInfo packageInfo;
+        mLoadCount++;
+        try {
+            packageInfo = mPackageManager.getPackageInfo(processName, 0);
+        }
+        catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+
+        String label = packageInfo.applicationInfo.loadLabel(mPackageManager).toString();
+        return new PackageMetadata(packageInfo.packageName, label, packageInfo.versionCode);
+    }
+}
@@ -0,0 +1,25 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+/**
+ * Decides how long AppUsageTracker waits between two foreground samples.
+ * A short interval gives more accurate usage times, a long interval means fewer wakeups and
+ * fewer calls into ActivityManager. Implementations pick the trade-off.
+ */
+public interface SamplingPolicy {
+
+    /**
+     * Get the interval used for the first sample after tracking (re)starts, for example when the
+     * service is created or the screen turns on.
+     * @return The interval in milliseconds.
+     */
+    public long getInitialInterval();
+
+    /**
+     * Get the interval to wait before taking the next sample.
+     * @param lastInterval The interval (in milliseconds) that was used before the current sample.
+     * @param foregroundChanged True if the current sample found a different foreground app than
+     *                          the previous sample.
+     * @return The interval in milliseconds.
+     */
+    public long getNextInterval(long lastInterval, boolean foregroundChanged);
+}
@@ -0,0 +1,188 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Runs UsageAccounting over a recorded trace as fast as possible, with a virtual clock instead
+ * of real time. Days of events replay in well under a second, so this is a deterministic harness
+ * for load testing and benchmarking the accounting. It measures samples per second and, with
+ * an AllocationCounter, allocations per simulated hour, and checks the day totals against totals
+ * computed exactly from the trace. Nothing here needs Android, so it also runs in tests.
+ */
+public class TraceReplayDriver {
+    public static final String TAG = "TraceReplayDriver";
+
+    private static final long HOUR_MS = 3600 * 1000;
+
+    /**
+     * What one replay measured.
+     */
+    public static class Result {
+        public final double SimulatedHours;
+        public final long Samples;
+        public final long ElapsedNanos;
+        public final long Allocations;
+        public final int Days;
+        // Largest difference between an accounted and the exact daily total of an app.
+        public final long MaxErrorSec;
+        // Sum of the differences over all apps and days.
+        public final long TotalErrorSec;
+
+        public Result(double simulatedHours, long samples, long elapsedNanos, long allocations,
+                      int days, long maxErrorSec, long totalErrorSec) {
+            SimulatedHours = simulatedHours;
+            Samples = samples;
+            ElapsedNanos = elapsedNanos;
+            Allocations = allocations;
+            Days = days;
+            MaxErrorSec = maxErrorSec;
+            TotalErrorSec = totalErrorSec;
+        }
+
+        public double getSamplesPerSecond() {
+            return Samples / Math.max(ElapsedNanos / 1e9, 1e-9);
+        }
+
+        public double getAllocationsPerHour() {
+            return Allocations / Math.max(SimulatedHours, 1e-9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f h over %d days: %d samples in %d ms (%.0f samples/s), "
+                            + "%.0f allocations/h, max error %d s, total error %d s",
+                    SimulatedHours, Days, Samples, ElapsedNanos / 1000000, getSamplesPerSecond(),
+                    getAllocationsPerHour(), MaxErrorSec, TotalErrorSec);
+        }
+    }
+
+    private final TraceReplayForegroundSource mSource;
+    private final SamplingPolicy mPolicy;
+    private final long mStartWallMs;
+    private final AllocationCounter mAllocationCounter;
+    // Usage of every day of the last replay, oldest first.
+    private ArrayList<DailyUsage> mDays = new ArrayList<DailyUsage>();
+
+    /**
+     * Construct a driver.
+     * @param source The trace to replay.
+     * @param policy Decides the virtual time between samples, as it does in AppUsageTracker.
+     * @param startWallMs Wall clock time the trace starts at. Decides where days begin and end.
+     * @param allocationCounter Counts allocations on the calling thread during the replay, or
+     *                          AllocationCounter.NONE.
+     */
+    public TraceReplayDriver(TraceReplayForegroundSource source, SamplingPolicy policy, long startWallMs,
+                             AllocationCounter allocationCounter) {
+        mSource = source;
+        mPolicy = policy;
+        mStartWallMs = startWallMs;
+        mAllocationCounter = allocationCounter;
+    }
+
+    /**
+     * Replay the whole trace.
+     * @return What the replay measured.
+     */
+    public Result run() {
+        mSource.rewind();
+        long end = mSource.getDuration();
+        UsageAccounting accounting = new UsageAccounting(mSource,
+                new DailyUsage(TrackDateUtil.getDaysSinceEpoch(mStartWallMs)));
+        ArrayList<DailyUsage> days = new ArrayList<DailyUsage>();
+
+        mAllocationCounter.start();
+        long startNanos = System.nanoTime();
+
+        long samples = 0;
+        long interval = mPolicy.getInitialInterval();
+        for (long now = 0; now < end; now += interval) {
+            long wallNow = mStartWallMs + now;
+            long date = TrackDateUtil.getDaysSinceEpoch(wallNow);
+            if (date > accounting.getToday().Date)
+                days.add(accounting.rollOver(date, now, wallNow));
+
+            mSource.setTime(now);
+            boolean changed = accounting.sample(now, wallNow);
+            samples++;
+            interval = mPolicy.getNextInterval(interval, changed);
+
+            // AppUsageTracker drops closed sessions once they are saved. Do the same, so memory
+            // doesn't grow with the length of the trace.
+            accounting.getToday().ClosedSessions.clear();
+        }
+        accounting.closeSession(end);
+        days.add(accounting.getToday());
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long allocations = mAllocationCounter.stop();
+        mDays = days;
+
+        // Compare with the exact totals.
+        HashMap<Long, HashMap<String, Long>> reference = computeReference();
+        long maxError = 0, totalError = 0;
+        for (DailyUsage day : days) {
+            HashMap<String, Long> expected = reference.get(day.Date);
+            for (AppUsageEntry entry : day.Entries.values()) {
+                Long expectedMs = (expected != null) ? expected.get(entry.PackageName) : null;
+                long error = Math.abs(entry.UsageTimeSec - ((expectedMs != null) ? expectedMs / 1000 : 0));
+                maxError = Math.max(maxError, error);
+                totalError += error;
+            }
+            // Apps the accounting missed completely.
+            if (expected != null) {
+                for (Map.Entry<String, Long> expectedEntry : expected.entrySet()) {
+                    if (!day.Entries.containsKey(expectedEntry.getKey())) {
+                        maxError = Math.max(maxError, expectedEntry.getValue() / 1000);
+                        totalError += expectedEntry.getValue() / 1000;
+                    }
+                }
+            }
+        }
+
+        return new Result(end / (double) HOUR_MS, samples, elapsedNanos, allocations, days.size(),
+                maxError, totalError);
+    }
+
+    /**
+     * Get the usage the accounting came up with in the last replay.
+     * @return The usage of every day, oldest first. Empty before run().
+     */
+    List<DailyUsage> getDays() {
+        return mDays;
+    }
+
+    /**
+     * Compute the exact daily totals of every app from the trace, splitting at local midnight.
+     * @return Milliseconds in foreground, by day and process name.
+     */
+    private HashMap<Long, HashMap<String, Long>> computeReference() {
+        HashMap<Long, HashMap<String, Long>> reference = new HashMap<Long, HashMap<String, Long>>();
+        for (int i = 0; i + 1 < mSource.getEventCount(); i++) {
+            String processName = mSource.getEventProcessName(i);
+            if (processName == null)
+                continue;
+
+            long start = mStartWallMs + mSource.getEventTime(i);
+            long end = mStartWallMs + mSource.getEventTime(i + 1);
+            while (start < end) {
+                long dayEnd = Math.min(end, TrackDateUtil.getNextMidnightMillis(start));
+                long date = TrackDateUtil.getDaysSinceEpoch(start);
+                HashMap<String, Long> totals = reference.get(date);
+                if (totals == null) {
+                    totals = new HashMap<String, Long>();
+                    reference.put(date, totals);
+                }
+                Long total = totals.get(processName);
+                totals.put(processName, ((total != null) ? total : 0) + (dayEnd - start));
+                start = dayEnd;
+            }
+        }
+        return reference;
+    }
+}
@@ -0,0 +1,166 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Foreground source that replays a recorded trace of foreground changes against a virtual clock.
+ * Each event says which launcher app came to foreground at which time, in milliseconds since the
+ * start of the trace. The app stays in foreground until the next event. A null app means no
+ * launcher app is in foreground, e.g. the home screen or screen off.
+ * Used by TraceReplayDriver. Looking up the foreground app and its metadata doesn't allocate, so
+ * only the accounting's own allocations are measured.
+ */
+public class TraceReplayForegroundSource implements ForegroundSource {
+
+    // Written in trace files for "no launcher app in foreground".
+    public static final String NO_APP = "-";
+
+    private final long[] mTimes;
+    private final String[] mProcessNames;
+    private final HashMap<String, PackageMetadataCache.PackageMetadata> mMetadata =
+            new HashMap<String, PackageMetadataCache.PackageMetadata>();
+    // Index of the last event at or before the virtual clock, or -1.
+    private int mPosition = -1;
+
+    /**
+     * Construct a source from a trace.
+     * @param times Event times in milliseconds since the start of the trace, in increasing order.
+     * @param processNames For each event, the process name of the app that came to foreground,
+     *                     or null.
+     */
+    public TraceReplayForegroundSource(long[] times, String[] processNames) {
+        if (times.length != processNames.length)
+            throw new IllegalArgumentException("Trace times and process names differ in length");
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] < times[i - 1])
+                throw new IllegalArgumentException("Trace times must be in increasing order");
+        }
+        mTimes = times;
+        mProcessNames = processNames;
+
+        // Every app of the trace is "installed", with its process name as label and no icon.
+        for (String processName : processNames) {
+            if (processName != null && !mMetadata.containsKey(processName))
+                mMetadata.put(processName, new PackageMetadataCache.PackageMetadata(processName, processName, 0));
+        }
+    }
+
+    /**
+     * Read a trace. Each line holds an event time in milliseconds and a process name, separated
+     * by white space. NO_APP stands for no launcher app. Empty lines and lines starting with #
+     * are skipped.
+     * @param reader Where to read the trace from.
+     * @return The source replaying the trace.
+     * @throws IOException If the trace cannot be read or has a malformed line.
+     */
+    public static TraceReplayForegroundSource read(BufferedReader reader) throws IOException {
+        ArrayList<Long> times = new ArrayList<Long>();
+        ArrayList<String> processNames = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2)
+                throw new IOException("Malformed trace line: " + line);
+            try {
+                times.add(Long.parseLong(fields[0]));
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Malformed trace time: " + line);
+            }
+            processNames.add(NO_APP.equals(fields[1]) ? null : fields[1]);
+        }
+
+        long[] timeArray = new long[times.size()];
+        for (int i = 0; i < timeArray.length; i++) {
+            timeArray[i] = times.get(i);
+        }
+        return new TraceReplayForegroundSource(timeArray, processNames.toArray(new String[processNames.size()]));
+    }
+
+    /**
+     * Generate a random but reproducible trace. Apps stay in foreground between 2 seconds and
+     * about 10 minutes, short visits being the most common, and about one in five events leaves
+     * no launcher app in foreground.
+     * @param seed Seed of the random generator. The same seed gives the same trace.
+     * @param durationMs Length of the trace in milliseconds.
+     * @param appCount Number of different apps.
+     * @return The source replaying the trace.
+     */
+    public static TraceReplayForegroundSource generate(long seed, long durationMs, int appCount) {
+        Random random = new Random(seed);
+        String[] apps = new String[appCount];
+        for (int i = 0; i < appCount; i++) {
+            apps[i] = "com.example.replay.app" + i;
+        }
+
+        ArrayList<Long> times = new ArrayList<Long>();
+        ArrayList<String> processNames = new ArrayList<String>();
+        long time = 0;
+        while (time < durationMs) {
+            times.add(time);
+            processNames.add((random.nextInt(5) == 0) ? null : apps[random.nextInt(appCount)]);
+            time += 2000 + (long) (random.nextDouble() * random.nextDouble() * 600000);
+        }
+        // End the trace with nothing in foreground, so its length is well defined.
+        times.add(durationMs);
+        processNames.add(null);
+
+        long[] timeArray = new long[times.size()];
+        for (int i = 0; i < timeArray.length; i++) {
+            timeArray[i] = times.get(i);
+        }
+        return new TraceReplayForegroundSource(timeArray, processNames.toArray(new String[processNames.size()]));
+    }
+
+    /**
+     * Move the virtual clock. The clock may only move forward, unless rewind() is called.
+     * @param now Milliseconds since the start of the trace.
+     */
+    public void setTime(long now) {
+        while (mPosition + 1 < mTimes.length && mTimes[mPosition + 1] <= now)
+            mPosition++;
+    }
+
+    /**
+     * Move the virtual clock back to before the first event.
+     */
+    public void rewind() {
+        mPosition = -1;
+    }
+
+    /**
+     * @return The time of the last event, i.e. the length of the trace in milliseconds.
+     */
+    public long getDuration() {
+        return (mTimes.length > 0) ? mTimes[mTimes.length - 1] : 0;
+    }
+
+    public int getEventCount() {
+        return mTimes.length;
+    }
+
+    public long getEventTime(int index) {
+        return mTimes[index];
+    }
+
+    public String getEventProcessName(int index) {
+        return mProcessNames[index];
+    }
+
+    @Override
+    public String getForegroundProcess() {
+        return (mPosition >= 0) ? mProcessNames[mPosition] : null;
+    }
+
+    @Override
+    public PackageMetadataCache.PackageMetadata getMetadata(String processName) {
+        return mMetadata.get(processName);
+    }
+}
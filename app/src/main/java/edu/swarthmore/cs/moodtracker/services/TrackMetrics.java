@@ -0,0 +1,165 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import java.io.PrintWriter;
+
+/**
+ * Counters and histograms of what tracking costs: how long ticks take, how long ActivityManager
+ * takes to list processes, how long saves take and how often the tracker wakes up.
+ * Recording never allocates, so it can be done on every tick. All buckets are fixed when the
+ * metrics are created. Recorded on the tracking thread, read from any thread through dump().
+ */
+public class TrackMetrics {
+
+    private static final long HOUR_MS = 3600 * 1000;
+    private static final int HOURS_KEPT = 24;
+
+    /**
+     * Histogram with fixed bucket upper bounds. Values above the last bound go to an overflow
+     * bucket.
+     */
+    public static class Histogram {
+        private final String mUnit;
+        private final long[] mBounds;
+        private final long[] mCounts;
+        private long mCount = 0;
+        private long mSum = 0;
+        private long mMax = 0;
+
+        /**
+         * Construct a histogram.
+         * @param unit Unit of the values, only used when printing.
+         * @param bounds Inclusive upper bounds of the buckets, in increasing order.
+         */
+        public Histogram(String unit, long[] bounds) {
+            mUnit = unit;
+            mBounds = bounds;
+            mCounts = new long[bounds.length + 1];
+        }
+
+        /**
+         * Add a value to the histogram.
+         * @param value The value, in this histogram's unit.
+         */
+        public void record(long value) {
+            int bucket = 0;
+            while (bucket < mBounds.length && value > mBounds[bucket])
+                bucket++;
+            mCounts[bucket]++;
+            mCount++;
+            mSum += value;
+            if (value > mMax)
+                mMax = value;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Print the histogram, skipping empty buckets.
+         * @param writer Where to print to.
+         * @param name Name of the histogram.
+         */
+        public void dump(PrintWriter writer, String name) {
+            writer.println(name + ": count=" + mCount
+                    + " avg=" + ((mCount > 0) ? mSum / mCount : 0) + mUnit
+                    + " max=" + mMax + mUnit);
+            for (int i = 0; i < mCounts.length; i++) {
+                if (mCounts[i] == 0)
+                    continue;
+                String bucket = (i < mBounds.length) ? "<=" + mBounds[i] : ">" + mBounds[mBounds.length - 1];
+                writer.println("  " + bucket + mUnit + ": " + mCounts[i]);
+            }
+        }
+    }
+
+    private final Histogram mTickDuration = new Histogram("us",
+            new long[] {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000});
+    private final Histogram mProcessQueryLatency = new Histogram("us",
+            new long[] {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000});
+    private final Histogram mFlushLatency = new Histogram("ms",
+            new long[] {5, 10, 25, 50, 100, 250, 500, 1000, 2500});
+    private long mFlushFailures = 0;
+
+    // SystemClock.elapsedRealtime() when the metrics were created.
+    private final long mStartTime;
+    // Wakeups of the last HOURS_KEPT hours, indexed by hour since mStartTime modulo HOURS_KEPT.
+    private final int[] mHourlyWakeups = new int[HOURS_KEPT];
+    private long mCurrentHour = 0;
+    private long mWakeups = 0;
+
+    /**
+     * Construct empty metrics.
+     * @param startTime The SystemClock.elapsedRealtime() the metrics start at.
+     */
+    public TrackMetrics(long startTime) {
+        mStartTime = startTime;
+    }
+
+    /**
+     * Record one tick of the tracker. Every tick is a wakeup.
+     * @param durationNanos How long the tick took, in nanoseconds.
+     * @param now The SystemClock.elapsedRealtime() of the tick.
+     */
+    public synchronized void recordTick(long durationNanos, long now) {
+        mTickDuration.record(durationNanos / 1000);
+        recordWakeup(now);
+    }
+
+    /**
+     * Record one call to ActivityManager.getRunningAppProcesses().
+     * @param durationNanos How long the call took, in nanoseconds.
+     */
+    public synchronized void recordProcessQuery(long durationNanos) {
+        mProcessQueryLatency.record(durationNanos / 1000);
+    }
+
+    /**
+     * Record one finished save to database.
+     * @param latencyMs How long the save took, in milliseconds.
+     * @param success Whether the save succeeded.
+     */
+    public synchronized void recordFlush(long latencyMs, boolean success) {
+        mFlushLatency.record(latencyMs);
+        if (!success)
+            mFlushFailures++;
+    }
+
+    /**
+     * Count a wakeup in the hourly buckets. Buckets of hours without wakeups are cleared.
+     * @param now The SystemClock.elapsedRealtime() of the wakeup.
+     */
+    private void recordWakeup(long now) {
+        long hour = Math.max(0, now - mStartTime) / HOUR_MS;
+        for (long h = Math.max(mCurrentHour + 1, hour - HOURS_KEPT + 1); h <= hour; h++) {
+            mHourlyWakeups[(int) (h % HOURS_KEPT)] = 0;
+        }
+        if (hour > mCurrentHour)
+            mCurrentHour = hour;
+        mHourlyWakeups[(int) (mCurrentHour % HOURS_KEPT)]++;
+        mWakeups++;
+    }
+
+    /**
+     * Print all metrics in a human readable form.
+     * @param writer Where to print to.
+     * @param now The current SystemClock.elapsedRealtime().
+     */
+    public synchronized void dump(PrintWriter writer, long now) {
+        double hours = Math.max(now - mStartTime, 1) / (double) HOUR_MS;
+        writer.println("Tracking for " + String.format("%.2f", hours) + " h");
+        writer.println("Wakeups: total=" + mWakeups + " per hour=" + String.format("%.1f", mWakeups / hours));
+
+        // Most recent hour first. Hours before mStartTime don't exist.
+        writer.print("Wakeups in the last hours:");
+        for (long h = mCurrentHour; h >= 0 && h > mCurrentHour - HOURS_KEPT; h--) {
+            writer.print(" " + mHourlyWakeups[(int) (h % HOURS_KEPT)]);
+        }
+        writer.println();
+
+        mTickDuration.dump(writer, "Tick duration");
+        mProcessQueryLatency.dump(writer, "getRunningAppProcesses latency");
+        mFlushLatency.dump(writer, "Flush latency");
+        writer.println("Flush failures: " + mFlushFailures);
+    }
+}
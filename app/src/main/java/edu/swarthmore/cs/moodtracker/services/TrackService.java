@@ -1,38 +1,36 @@
 package edu.swarthmore.cs.moodtracker.services;
 
-import android.app.ActivityManager;
-import android.app.ActivityManager.RunningAppProcessInfo;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
-import android.graphics.drawable.BitmapDrawable;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
-import edu.swarthmore.cs.moodtracker.R;
 import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
-import edu.swarthmore.cs.moodtracker.db.ReadAppUsageTask;
-import edu.swarthmore.cs.moodtracker.db.SaveAppUsageTask;
+import edu.swarthmore.cs.moodtracker.db.FlushStats;
 import edu.swarthmore.cs.moodtracker.db.TrackDatabase;
-import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+import edu.swarthmore.cs.moodtracker.util.AppIconCache;
 
 /**
  * The service that tracks various stats on the phone, such as app usage, movement, text, voice, etc.
  * Started when the user launches application for the first time. Runs indefinitely.
+ * Each kind of stat is tracked by a Tracker. All trackers run on a dedicated tracking thread
+ * (mTrackerThread), so tracking never competes with UI frames, and are ticked by one
+ * TrackerScheduler, which pauses them all while the screen is off. To track something new, add
+ * a Tracker to mScheduler in onCreate() instead of starting another timer.
+ * Clients on other threads only read published snapshots.
  */
 public class TrackService extends Service{
 
@@ -41,22 +39,17 @@ public class TrackService extends Service{
     // Binder given to clients
     private final IBinder mBinder = new TrackBinder();
 
-    // Database that stores all tracking information
-    private TrackDatabase mDatabase;
+    /* Threading Variables */
+    // Runs all trackers and owns their state.
+    private HandlerThread mTrackerThread = null;
+    private Handler mTrackerHandler = null;
+    private TrackerScheduler mScheduler = null;
 
-    /* Timer and Date Variables  */
-    private Handler mTimer = new Handler();
-    private Runnable mTimerCallback = null;
-    private final int mTimerInterval = 1000;
-    private final int mSaveInterval = 60;
-    private int mSaveTicks = 0;
-    private long mCurrentDate = TrackDateUtil.getDaysSinceEpoch();
+    /* Trackers */
+    private AppUsageTracker mAppUsageTracker = null;
 
-    /* App Usage Tracking Variables */
-    private ActivityManager mActivityManager = null;
-    private PackageManager mPackageManager = null;
-    private HashSet<String> mLauncherProcessNames = null;
-    private HashMap<String, AppUsageEntry> mAppUsageInfo = null;
+    // What tracking costs. See dump().
+    private final TrackMetrics mMetrics = new TrackMetrics(SystemClock.elapsedRealtime());
 
 
     /*----------------------------*/
@@ -77,13 +70,27 @@ public class TrackService extends Service{
     @Override
     public void onCreate() {
         Log.d(TAG, "onCreate()");
-        mDatabase = TrackDatabase.getInstance(this);
 
-        // Initialize and run App Usage tracking.
-        initializeAppUsageTracking();
-        initializeTimer();
+        // Start the tracking thread. Every tracker runs there.
+        mTrackerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mTrackerThread.start();
+        mTrackerHandler = new Handler(mTrackerThread.getLooper());
+
+        // Set up the trackers and start ticking them.
+        mAppUsageTracker = new AppUsageTracker(this, mTrackerHandler, mMetrics);
+        mScheduler = new TrackerScheduler(mTrackerHandler, mMetrics);
+        mScheduler.addTracker(mAppUsageTracker);
+        mTrackerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.start();
+            }
+        });
+
         registerBroadcastReceiver();
-        //mTimerCallback.run();
+
+        // Finish any backfill an upgrade of the database left, on its own background thread.
+        TrackDatabase.getInstance(this).startBackfills();
     }
 
     @Override
@@ -109,70 +116,17 @@ public class TrackService extends Service{
     public void onDestroy() {
         Log.d(TAG, "onDestroy()");
 
-        // Stop timer ticking.
-        mTimer.removeCallbacks(mTimerCallback);
-
         // Clean up.
         unregisterBroadcastReceiver();
-        saveDataToDatabase();
-    }
 
-
-    /*-----------------------*/
-    /* Time and Date Methods */
-    /*-----------------------*/
-
-    /**
-     * Set up the timer interval and callbacks.
-     */
-    private void initializeTimer() {
-        // Start the call back that updates app usage data every mTimerInterval ms.
-        mTimerCallback = new Runnable() {
+        // Stop the trackers on the tracking thread, which saves everything, then stop the thread.
+        mTrackerHandler.post(new Runnable() {
             @Override
             public void run() {
-                checkForNewDay();
-                updateAppUsageInfo();
-
-                // Save data to database every mSaveInterval seconds.
-                mSaveTicks += (mTimerInterval /1000);
-                if (mSaveTicks > mSaveInterval) {
-                    saveDataToDatabase();
-                }
-
-                // Post this runnable again for next tick.
-                mTimer.postDelayed(this, mTimerInterval);
+                mScheduler.stop();
+                mTrackerThread.quit();
             }
-        };
-    }
-
-    /**
-     * Check whether we just passed 11:59:59 pm. If yes, save yesterday's data to database
-     * and initialize today's data.
-     */
-    private void checkForNewDay() {
-        long newDate = TrackDateUtil.getDaysSinceEpoch();
-        if (newDate > mCurrentDate) {
-            Log.d(TAG, "newDay");
-            saveDataToDatabase();
-            mCurrentDate = newDate;
-
-            // Renew app usage info map.
-            mAppUsageInfo = new HashMap<String, AppUsageEntry>();
-        }
-    }
-
-    /**
-     * Write app usage data to database (i.e. disk) to store them permanently.
-     * Called in onUnbind() and onDestroy().
-     */
-    public void saveDataToDatabase() {
-        mSaveTicks = 0;
-        new SaveAppUsageTask(this, mAppUsageInfo.values()) {
-            @Override
-            public void onFinish() {
-                Log.d(TAG, "App usage saved to database");
-            }
-        }.execute();
+        });
     }
 
 
@@ -182,162 +136,114 @@ public class TrackService extends Service{
 
     /**
      * Get the current app usage info. Used by the activities bound to this service.
-     * This involves database query and is best
-     * @return A collection of AppUsageEntry objects.
+     * Safe to call from any thread. The entries are built from the last published snapshot and
+     * belong to the caller.
+     * @return A list of AppUsageEntry objects, or null if today's usage is not loaded yet.
      */
     public List<AppUsageEntry> getTodayAppUsage() {
-        if (mAppUsageInfo == null)
-            return null;
-        return new ArrayList<AppUsageEntry>(mAppUsageInfo.values());
+        return mAppUsageTracker.getTodayAppUsage();
     }
 
-
     /**
-     * Initialize App Usage tracking.
+     * Get the last published snapshot of today's usage. Safe to call from any thread.
+     * Compare AppUsageSnapshot.getVersion() with the version used last time to tell whether
+     * anything changed.
+     * @return The snapshot, or null if today's usage is not loaded yet.
      */
-    private void initializeAppUsageTracking() {
-        // Construct activity manager and package manager.
-        mActivityManager = (ActivityManager) this.getSystemService(ACTIVITY_SERVICE);
-        mPackageManager = getPackageManager();
-
-        // Construct the launcher app filter
-        populateLauncherProcessNames();
-
-        // Read existing usage entries from database (asynchronously).
-        mAppUsageInfo = new HashMap<String, AppUsageEntry>();
-        new ReadAppUsageTask(this) {
-            @Override
-            public void onFinish(List<AppUsageEntry> result) {
-                Log.d(TAG, "Loaded app usage from database");
-                for (AppUsageEntry entry:result) {
-                    mAppUsageInfo.put(entry.PackageName, entry);
-                }
-                mTimerCallback.run();
-            }
-        }.execute(mCurrentDate, mCurrentDate);
+    public AppUsageSnapshot getAppUsageSnapshot() {
+        return mAppUsageTracker.getAppUsageSnapshot();
     }
 
     /**
-     * Populate the launcher app process name HashSet. Only process names in this set are tracked.
-     * We only want to track apps whose icons show in Launcher, because these are the apps that
-     * user is aware of. We don't need things like "NFC Service" or "ASUS Keyboard", even if sometimes
-     * they have foreground importance.
+     * Write app usage data to database (i.e. disk) to store them permanently.
+     * Can be called from any thread, e.g. by activities when they pause. The save itself is done
+     * by the tracking thread.
      */
-    private void populateLauncherProcessNames() {
-
-        HashSet<String> filteredLauncherProcesses = new HashSet<String>();
-        filteredLauncherProcesses.addAll(Arrays.asList(
-                getResources().getStringArray(R.array.filtered_launcher_process_names)));
-
-        mLauncherProcessNames = new HashSet<String>();
-        // Use an Launcher intent to resolve all Activities that can be launched from home.
-        Intent intent = new Intent(Intent.ACTION_MAIN, null);
-        intent.addCategory(Intent.CATEGORY_LAUNCHER);
-        List<ResolveInfo> resolveInfoList = mPackageManager.queryIntentActivities(intent, 0);
-
-        // Translate resolveInfo to packageName, then to appInfo, then to processName.
-        for(ResolveInfo resolveInfo : resolveInfoList) {
-            String packageName = resolveInfo.activityInfo.packageName;
-            try {
-                ApplicationInfo appInfo = mPackageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
-                if (!filteredLauncherProcesses.contains(appInfo.processName))
-                    mLauncherProcessNames.add(appInfo.processName);
-            }
-            catch (PackageManager.NameNotFoundException e) {
-                Log.e(TAG, e.toString());
-            }
-        }
+    public void saveDataToDatabase() {
+        mAppUsageTracker.saveDataToDatabase();
     }
 
-
     /**
-     * Update the App Usage track information.
-     * Called by mTimer every [mTimerInterval] milliseconds.
+     * Get the result of the last finished database save.
+     * @return How many rows the save wrote and how long it took, or null if nothing was saved yet.
      */
-    private void updateAppUsageInfo() {
-        List<RunningAppProcessInfo> appProcesses = mActivityManager.getRunningAppProcesses();
-        for(RunningAppProcessInfo appProcessInfo : appProcesses){
-            // Skip non-foreground processes.
-            if (appProcessInfo.importance != RunningAppProcessInfo.IMPORTANCE_FOREGROUND)
-                continue;
-
-            // If this process is important because it's a provider / service of a foreground app,
-            // then also ignore it. For example, com.android.providers.calendar will have
-            // foreground importance when user is using com.google.android.calendar , because
-            // it's the provider of the calendar app.
-            if (isProviderOrService(appProcessInfo))
-                continue;
-
-            // Get the package info of this process
-            String processName = appProcessInfo.processName;
-
-            // If the first non-service foreground process is not a launcher app, then we are most
-            // likely in the launcher itself, or the settings page. Break in here.
-            // See populateLauncherProcessNames() for more details.
-            if(! mLauncherProcessNames.contains(processName))
-                break;
-
-            PackageInfo packageInfo;
-            try {
-                packageInfo = mPackageManager.getPackageInfo(processName, PackageManager.GET_ACTIVITIES);
-            }
-            catch (PackageManager.NameNotFoundException e) {
-                continue;
-            }
-
+    public FlushStats getLastFlushStats() {
+        return mAppUsageTracker.getLastFlushStats();
+    }
 
-            // We have found a foreground launcher app. Update usage info now.
-            if ( mAppUsageInfo.containsKey(processName) ) {
-                AppUsageEntry entry = mAppUsageInfo.get(processName);
-                entry.UsageTimeSec += (mTimerInterval /1000);
-            }
-            else {
-                String appName = packageInfo.applicationInfo.loadLabel(mPackageManager).toString();
-                BitmapDrawable appIcon = (BitmapDrawable) packageInfo.applicationInfo.loadIcon(getPackageManager());
+    /**
+     * Replace the policy that decides how often the foreground app is sampled.
+     * Takes effect after the next sample.
+     * @param policy The new sampling policy.
+     */
+    public void setSamplingPolicy(SamplingPolicy policy) {
+        mAppUsageTracker.setSamplingPolicy(policy);
+    }
 
-                AppUsageEntry newEntry = new AppUsageEntry(processName, appName, appIcon.getBitmap(), 1, mCurrentDate);
 
-                mAppUsageInfo.put(processName, newEntry);
-            }
+    /*---------------------*/
+    /* Diagnostics Methods */
+    /*---------------------*/
 
-            // Break after we found one foreground app.
-            break;
-        }
+    /**
+     * Print what tracking costs on this device: tick and query latencies, PackageManager
+     * lookups, saves, wakeups, the memory used by app icons and database backfills. Safe to call
+     * from any thread.
+     * @param writer Where to print to.
+     */
+    public void dumpMetrics(PrintWriter writer) {
+        writer.println("Device: " + Build.MANUFACTURER + " " + Build.MODEL + " (API " + Build.VERSION.SDK_INT + ")");
+        mMetrics.dump(writer, SystemClock.elapsedRealtime());
+        mScheduler.dump(writer);
+        writer.println(AppIconCache.getInstance(this));
+        writer.println(TrackDatabase.getInstance(this).getBackfillStatus());
     }
 
-
     /**
-     * Decide whether this app process is a provider or service.
-     * @param appProcessInfo Information of the running process.
-     * @return Boolean True if this process is a service or provider, false otherwise.
+     * Print the metrics with "adb shell dumpsys activity service TrackService".
      */
-    private boolean isProviderOrService(RunningAppProcessInfo appProcessInfo) {
-        return (appProcessInfo.importanceReasonCode == RunningAppProcessInfo.REASON_PROVIDER_IN_USE ||
-                appProcessInfo.importanceReasonCode == RunningAppProcessInfo.REASON_SERVICE_IN_USE);
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dumpMetrics(writer);
     }
 
 
 
-    /*--------------------------------------*/
-    /* Broadcast Receiver for Screen ON/OFF */
-    /*--------------------------------------*/
-    private BroadcastReceiver mScreenOnOffReceiver = new TrackBroadcastReceiver();
+    /*--------------------------------------------------*/
+    /* Broadcast Receiver for Screen and Package events */
+    /*--------------------------------------------------*/
+    private BroadcastReceiver mTrackReceiver = new TrackBroadcastReceiver();
 
     /**
      * Our broadcast receiver that listens to system events we are interested in.
+     * Registered with mTrackerHandler, so onReceive() runs on the tracking thread.
      */
     private class TrackBroadcastReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(Intent.ACTION_SCREEN_OFF)) {
-                Log.d(TAG, "Screen off, stop ticking timer");
-                mTimer.removeCallbacks(mTimerCallback);
+                Log.d(TAG, "Screen off, pause trackers");
+                mScheduler.pause();
             }
 
             if (action.equals(Intent.ACTION_SCREEN_ON)) {
-                Log.d(TAG, "Screen on, start ticking timer");
-                mTimerCallback.run();
+                Log.d(TAG, "Screen on, resume trackers");
+                mScheduler.resume();
+            }
+
+            if (action.equals(Intent.ACTION_TIMEZONE_CHANGED) || action.equals(Intent.ACTION_TIME_CHANGED)) {
+                Log.d(TAG, "Time changed, reschedule day change");
+                mAppUsageTracker.onTimeChanged(action.equals(Intent.ACTION_TIMEZONE_CHANGED));
+            }
+
+            if (action.equals(Intent.ACTION_PACKAGE_ADDED) || action.equals(Intent.ACTION_PACKAGE_REPLACED)
+                    || action.equals(Intent.ACTION_PACKAGE_REMOVED)) {
+                if (intent.getData() == null)
+                    return;
+                String packageName = intent.getData().getSchemeSpecificPart();
+                Log.d(TAG, "Package " + packageName + " changed, invalidate cached metadata");
+                mAppUsageTracker.onPackageChanged(packageName);
             }
         }
     }
@@ -347,12 +253,23 @@ public class TrackService extends Service{
      */
     private void registerBroadcastReceiver() {
 
-        // Only receive Screen On/Off broadcasts.
+        // Receive Screen On/Off and time broadcasts.
         final IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_SCREEN_ON);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+
+        getApplicationContext().registerReceiver(mTrackReceiver, filter, null, mTrackerHandler);
+
+        // Receive package broadcasts, which only match intents with a "package" data scheme.
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
 
-        getApplicationContext().registerReceiver(mScreenOnOffReceiver, filter);
+        getApplicationContext().registerReceiver(mTrackReceiver, packageFilter, null, mTrackerHandler);
     }
 
     /**
@@ -360,10 +277,10 @@ public class TrackService extends Service{
      */
     private void unregisterBroadcastReceiver() {
         try {
-            getApplicationContext().unregisterReceiver(mScreenOnOffReceiver);
+            getApplicationContext().unregisterReceiver(mTrackReceiver);
         }
         catch (IllegalArgumentException e) {
-            mScreenOnOffReceiver = null;
+            mTrackReceiver = null;
         }
     }
 
@@ -0,0 +1,67 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import java.io.PrintWriter;
+
+/**
+ * Something TrackService tracks, such as app usage. Trackers don't own timers. They tell the
+ * TrackerScheduler when they want their next tick and how late it may come, and the scheduler
+ * wakes up once for all trackers that are due.
+ * All methods but dump() are called on the tracking thread. Times are
+ * SystemClock.elapsedRealtime().
+ */
+public interface Tracker {
+
+    /**
+     * @return A short name for logs and dumps.
+     */
+    public String getName();
+
+    /**
+     * Called once when the service starts tracking.
+     * @param scheduler The scheduler ticking this tracker. See TrackerScheduler.requestTick().
+     * @param now The current time.
+     */
+    public void onStart(TrackerScheduler scheduler, long now);
+
+    /**
+     * Called when ticking resumes, e.g. because the screen turned on. A tick follows right away.
+     * @param now The current time.
+     */
+    public void onResume(long now);
+
+    /**
+     * Do the periodic work of this tracker.
+     * @param now The time of this tick.
+     * @return How long to wait before the next tick, in milliseconds.
+     */
+    public long onTick(long now);
+
+    /**
+     * Get how much later than requested the next tick may come. The scheduler uses this slack
+     * to run ticks of several trackers in one wakeup. The same slack also allows a tick to come
+     * that much early.
+     * @return The slack in milliseconds.
+     */
+    public long getTickSlack();
+
+    /**
+     * Called when ticking pauses, e.g. because the screen turned off. No ticks come until
+     * onResume().
+     * @param now The current time.
+     */
+    public void onPause(long now);
+
+    /**
+     * Called once when the service stops. Save everything that's not saved yet before returning,
+     * the tracking thread quits afterwards.
+     * @param now The current time.
+     */
+    public void onStop(long now);
+
+    /**
+     * Print diagnostics of this tracker. Unlike the other methods, this may be called from any
+     * thread, so only print values that are safe to read there.
+     * @param writer Where to print to.
+     */
+    public void dump(PrintWriter writer);
+}
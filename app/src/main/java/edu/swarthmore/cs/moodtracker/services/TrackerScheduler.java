@@ -0,0 +1,196 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Ticks all trackers of TrackService from one timer, on the tracking thread.
+ * Every tracker asks for its next tick after some interval and allows it to come a bit early or
+ * late (Tracker.getTickSlack()). The scheduler wakes up at the earliest requested time, and
+ * ticks every tracker whose requested time is within its slack of that wakeup. So trackers
+ * that want ticks at similar times share wakeups instead of each waking the device on its own.
+ * All ticking pauses while the screen is off.
+ */
+public class TrackerScheduler {
+    public static final String TAG = "TrackerScheduler";
+
+    /**
+     * A tracker and when it wants its next tick.
+     */
+    private static class Entry {
+        final Tracker Tracker;
+        // SystemClock.elapsedRealtime() the tracker wants its next tick at.
+        long NextTickTime = 0;
+
+        Entry(Tracker tracker) {
+            Tracker = tracker;
+        }
+    }
+
+    private final Handler mHandler;
+    private final TrackMetrics mMetrics;
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final Runnable mTickCallback;
+    private boolean mStarted = false;
+    private volatile boolean mPaused = true;
+
+    /**
+     * Construct a scheduler.
+     * @param handler Handler of the tracking thread. Every tracker method is called there.
+     * @param metrics Where to record how long wakeups take.
+     */
+    public TrackerScheduler(Handler handler, TrackMetrics metrics) {
+        mHandler = handler;
+        mMetrics = metrics;
+        mTickCallback = new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        };
+    }
+
+    /**
+     * Add a tracker. Must be called before start().
+     * @param tracker The tracker.
+     */
+    public void addTracker(Tracker tracker) {
+        if (mStarted)
+            throw new IllegalStateException("Cannot add trackers after start()");
+        mEntries.add(new Entry(tracker));
+    }
+
+    /**
+     * Start all trackers and start ticking. Must be called on the tracking thread.
+     */
+    public void start() {
+        long now = SystemClock.elapsedRealtime();
+        mStarted = true;
+        for (Entry entry : mEntries) {
+            entry.Tracker.onStart(this, now);
+        }
+        resume();
+    }
+
+    /**
+     * Resume ticking, e.g. when the screen turns on. Every tracker ticks right away.
+     * Does nothing if not paused. Must be called on the tracking thread.
+     */
+    public void resume() {
+        if (!mStarted || !mPaused)
+            return;
+        mPaused = false;
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : mEntries) {
+            entry.Tracker.onResume(now);
+            entry.NextTickTime = now;
+        }
+        schedule(now);
+    }
+
+    /**
+     * Pause ticking, e.g. when the screen turns off. Must be called on the tracking thread.
+     */
+    public void pause() {
+        if (!mStarted || mPaused)
+            return;
+        mPaused = true;
+        mHandler.removeCallbacks(mTickCallback);
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : mEntries) {
+            entry.Tracker.onPause(now);
+        }
+    }
+
+    /**
+     * Stop all trackers. Must be called on the tracking thread, which may quit afterwards.
+     */
+    public void stop() {
+        pause();
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : mEntries) {
+            entry.Tracker.onStop(now);
+        }
+        mStarted = false;
+    }
+
+    /**
+     * Ask for a tick of one tracker as soon as possible, e.g. because it finished loading.
+     * Must be called on the tracking thread. Ignored while paused.
+     * @param tracker The tracker.
+     */
+    public void requestTick(Tracker tracker) {
+        if (mPaused)
+            return;
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : mEntries) {
+            if (entry.Tracker == tracker)
+                entry.NextTickTime = now;
+        }
+        schedule(now);
+    }
+
+    /**
+     * Print whether the scheduler is ticking, and the diagnostics of every tracker.
+     * Can be called from any thread once trackers are added.
+     * @param writer Where to print to.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Scheduler: " + (mPaused ? "paused" : "ticking"));
+        for (Entry entry : mEntries) {
+            writer.println("Tracker " + entry.Tracker.getName() + " (slack " + entry.Tracker.getTickSlack() + " ms):");
+            entry.Tracker.dump(writer);
+        }
+    }
+
+    /**
+     * Tick every tracker that is due, then schedule the next wakeup.
+     */
+    private void tick() {
+        // There must only be one chain of ticks, so drop any other pending tick.
+        mHandler.removeCallbacks(mTickCallback);
+        if (mPaused)
+            return;
+
+        long tickStart = System.nanoTime();
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : mEntries) {
+            if (entry.NextTickTime - entry.Tracker.getTickSlack() > now)
+                continue;
+
+            long interval = Math.max(1, entry.Tracker.onTick(now));
+            // Aim at the previous target plus the interval rather than now, so the time spent in
+            // each tick and small delays don't add up. If we fell a whole interval behind, start
+            // over from now instead of firing a burst of ticks.
+            if (entry.NextTickTime > 0 && entry.NextTickTime + interval > now)
+                entry.NextTickTime += interval;
+            else
+                entry.NextTickTime = now + interval;
+        }
+        schedule(now);
+        mMetrics.recordTick(System.nanoTime() - tickStart, now);
+    }
+
+    /**
+     * Post the tick callback at the time the tracker due first asked for. Trackers due within
+     * their slack after that are ticked along with it.
+     * @param now The current SystemClock.elapsedRealtime().
+     */
+    private void schedule(long now) {
+        if (mEntries.isEmpty())
+            return;
+        long wakeTime = Long.MAX_VALUE;
+        for (Entry entry : mEntries) {
+            wakeTime = Math.min(wakeTime, entry.NextTickTime);
+        }
+
+        // Handler times are in uptime, which stops while the device sleeps. The screen is on
+        // while we tick, so the two clocks run at the same speed.
+        long delay = Math.max(0, wakeTime - now);
+        mHandler.removeCallbacks(mTickCallback);
+        mHandler.postAtTime(mTickCallback, SystemClock.uptimeMillis() + delay);
+    }
+}
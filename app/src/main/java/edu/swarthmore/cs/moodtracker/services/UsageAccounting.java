@@ -0,0 +1,290 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import java.util.List;
+import java.util.Map;
+
+import edu.swarthmore.cs.moodtracker.db.AppSession;
+import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
+import edu.swarthmore.cs.moodtracker.util.TrackDateUtil;
+
+/**
+ * Turns foreground samples into sessions and daily usage totals.
+ * Time is always passed in by the caller, as SystemClock.elapsedRealtime() ("now") and as wall
+ * clock time, and foreground apps come from a ForegroundSource. So the same accounting runs in
+ * AppUsageTracker and, with a virtual clock and a recorded trace, in TraceReplayDriver.
+ * Not thread safe. AppUsageTracker only uses it on its tracking thread.
+ */
+public class UsageAccounting {
+
+    private final ForegroundSource mSource;
+    // Crash-safe record of sessions. Null if not journaling.
+    private UsageJournal mJournal = null;
+
+    private DailyUsage mToday;
+    // Foreground session that is still open, or null if no launcher app is in foreground.
+    private AppSession mOpenSession = null;
+    // Elapsed time when mOpenSession started. Used to measure its duration.
+    private long mOpenSessionStartTime = 0;
+
+    /**
+     * Construct the accounting for a day.
+     * @param source Where foreground apps are sampled from.
+     * @param today The usage of today so far.
+     */
+    public UsageAccounting(ForegroundSource source, DailyUsage today) {
+        mSource = source;
+        mToday = today;
+    }
+
+    /**
+     * Journal every session from now on.
+     * @param journal The journal, or null to stop journaling.
+     */
+    public void setJournal(UsageJournal journal) {
+        mJournal = journal;
+    }
+
+    public DailyUsage getToday() {
+        return mToday;
+    }
+
+    /**
+     * @return The open session, or null if no launcher app is in foreground. Its EndMs is only
+     * up to date once it is closed, see getOpenSessionEndMs().
+     */
+    public AppSession getOpenSession() {
+        return mOpenSession;
+    }
+
+    /**
+     * @return The elapsed time when the open session started.
+     */
+    public long getOpenSessionStartTime() {
+        return mOpenSessionStartTime;
+    }
+
+    /**
+     * Get the wall clock end of the open session if it closed now.
+     * @param now The current elapsed time.
+     * @return The end time in milliseconds since epoch.
+     */
+    public long getOpenSessionEndMs(long now) {
+        return mOpenSession.StartMs + (now - mOpenSessionStartTime);
+    }
+
+    /**
+     * Take one foreground sample. Nothing is written while the same app stays in foreground;
+     * when the foreground app changes, the open session is closed and a new one is opened.
+     * @param now The elapsed time of this sample.
+     * @param wallNow The wall clock time of this sample.
+     * @return True if the foreground launcher app is different from the previous sample.
+     */
+    public boolean sample(long now, long wallNow) {
+        String processName = mSource.getForegroundProcess();
+        String openPackage = (mOpenSession != null) ? mOpenSession.PackageName : null;
+        if (processName == null ? openPackage == null : processName.equals(openPackage)) {
+            // Same app as before. Only move the journaled end of the open session forward.
+            if (mOpenSession != null && mJournal != null)
+                mJournal.updateOpenSession(getOpenSessionEndMs(now));
+            return false;
+        }
+
+        closeSession(now);
+        if (processName != null)
+            openSession(processName, now, wallNow);
+        return true;
+    }
+
+    /**
+     * Open a session for an app that is in foreground.
+     * @param processName The process name of the app.
+     * @param now The elapsed time the session starts at.
+     * @param startMs The wall clock time the session starts at.
+     */
+    public void openSession(String processName, long now, long startMs) {
+        // Make sure an entry exists, so the app shows up right away, even with 0 seconds.
+        AppUsageEntry entry = mToday.Entries.get(processName);
+        if (entry == null) {
+            entry = createAppUsageEntry(processName, mToday.Date);
+            if (entry == null)
+                return;
+            mToday.Entries.put(processName, entry);
+        }
+        else {
+            // Entries read from the database may belong to an older version of the app.
+            refreshAppInfo(entry);
+        }
+
+        mOpenSession = new AppSession(processName, startMs, startMs);
+        mOpenSessionStartTime = now;
+        if (mJournal != null)
+            mJournal.openSession(UsageJournal.encodeName(processName), startMs);
+    }
+
+    /**
+     * Close the open session, if any, and add its duration to the app's daily total.
+     * The duration is measured with the elapsed time, so it doesn't depend on how many samples
+     * were taken or on changes to the wall clock.
+     * @param now The elapsed time when the app left foreground.
+     */
+    public void closeSession(long now) {
+        if (mOpenSession == null)
+            return;
+
+        long duration = Math.max(0, now - mOpenSessionStartTime);
+        mOpenSession.EndMs = mOpenSession.StartMs + duration;
+
+        AppUsageEntry entry = mToday.Entries.get(mOpenSession.PackageName);
+        if (entry != null) {
+            entry.addUsageMillis(duration);
+            mToday.DirtyPackages.add(mOpenSession.PackageName);
+        }
+
+        mToday.ClosedSessions.add(mOpenSession);
+        if (mJournal != null)
+            mJournal.closeOpenSession(mOpenSession.EndMs);
+        mOpenSession = null;
+    }
+
+    /**
+     * Start a new day. The part of the open session before midnight stays with the old day,
+     * the rest continues as a new session in the new day.
+     * @param newDate The new day, in days since epoch.
+     * @param now The current elapsed time.
+     * @param wallNow The current wall clock time, which must be in the new day.
+     * @return The usage of the day that ended.
+     */
+    public DailyUsage rollOver(long newDate, long now, long wallNow) {
+        String openPackage = null;
+        long midnightWall = TrackDateUtil.getStartOfDayMillis(wallNow);
+        long midnight = now;
+        if (mOpenSession != null) {
+            openPackage = mOpenSession.PackageName;
+            midnight = Math.min(now, Math.max(mOpenSessionStartTime, now - (wallNow - midnightWall)));
+            midnightWall = wallNow - (now - midnight);
+            closeSession(midnight);
+        }
+
+        DailyUsage yesterday = mToday;
+        mToday = new DailyUsage(newDate);
+        if (mJournal != null) {
+            // Journal records up to here belong to the old day, the rest to the new one.
+            yesterday.JournalEnd = mJournal.getMark();
+            mToday.JournalStart = yesterday.JournalEnd;
+        }
+        if (openPackage != null)
+            openSession(openPackage, midnight, midnightWall);
+        return yesterday;
+    }
+
+    /**
+     * Copy a usage entry, including the time of the session that is still open.
+     * @param entry The entry to copy.
+     * @param now The elapsed time to count the open session up to.
+     * @return A new AppUsageEntry object.
+     */
+    public AppUsageEntry copyAppUsageEntry(AppUsageEntry entry, long now) {
+        AppUsageEntry copy = new AppUsageEntry(entry);
+        if (mOpenSession != null && entry.DaysSinceEpoch == mToday.Date
+                && entry.PackageName.equals(mOpenSession.PackageName))
+            copy.addUsageMillis(now - mOpenSessionStartTime);
+        return copy;
+    }
+
+    /**
+     * Add journaled sessions that are missing from the database to the usage of the day they
+     * started in. rollOver() splits sessions at midnight, so each one belongs to a single day.
+     * Sessions of later days, journaled before the clock was set back, are added to today, just
+     * like the tracker keeps counting into today in that case.
+     * @param records Sessions read back from the journal.
+     * @param pastDays Usage of earlier days by date, holding what the database has stored of them.
+     *                 Sessions of earlier days are added there, creating the day if needed. The
+     *                 caller saves the days that are dirty afterwards.
+     * @return The number of sessions added.
+     */
+    public int replayJournal(List<UsageJournal.Record> records, Map<Long, DailyUsage> pastDays) {
+        int added = 0;
+        long todayJournalStart = (mJournal != null) ? mJournal.getMark() : 0;
+        for (UsageJournal.Record record : records) {
+            long unflushedMs = record.getUnflushedMs();
+            if (unflushedMs <= 0)
+                continue;
+
+            long date = TrackDateUtil.getDaysSinceEpoch(record.StartMs);
+            DailyUsage day = mToday;
+            if (date < mToday.Date) {
+                day = pastDays.get(date);
+                if (day == null) {
+                    day = new DailyUsage(date);
+                    pastDays.put(date, day);
+                }
+            }
+
+            // The session is saved even if the app is gone, like closeSession() does, so the
+            // journal record is written by the next save and can be dropped.
+            AppUsageEntry entry = day.Entries.get(record.PackageName);
+            if (entry == null) {
+                entry = createAppUsageEntry(record.PackageName, day.Date);
+                if (entry != null)
+                    day.Entries.put(record.PackageName, entry);
+            }
+            if (entry != null) {
+                entry.addUsageMillis(unflushedMs);
+                day.DirtyPackages.add(record.PackageName);
+            }
+            day.ClosedSessions.add(new AppSession(record.PackageName, record.StartMs, record.EndMs));
+            added++;
+
+            // The next save of the day writes this journal record. Past days only hold the
+            // records replayed here.
+            if (day == mToday) {
+                todayJournalStart = Math.min(todayJournalStart, record.Mark);
+            }
+            else {
+                if (day.JournalEnd == Long.MAX_VALUE)
+                    day.JournalStart = record.Mark;
+                day.JournalEnd = record.Mark + 1;
+            }
+        }
+        mToday.JournalStart = todayJournalStart;
+        return added;
+    }
+
+    /**
+     * Reload the name and version of an app in today's usage, e.g. after the app was updated.
+     * The entry is marked dirty if its version changed, so the next save stores the new name
+     * and icon.
+     * @param processName The process name of the app.
+     * @return True if the entry changed.
+     */
+    public boolean refreshAppInfo(String processName) {
+        AppUsageEntry entry = mToday.Entries.get(processName);
+        return entry != null && refreshAppInfo(entry);
+    }
+
+    private boolean refreshAppInfo(AppUsageEntry entry) {
+        PackageMetadataCache.PackageMetadata metadata = mSource.getMetadata(entry.PackageName);
+        if (metadata == null || metadata.VersionCode == entry.VersionCode)
+            return false;
+
+        entry.AppName = metadata.Label;
+        entry.VersionCode = metadata.VersionCode;
+        mToday.DirtyPackages.add(entry.PackageName);
+        return true;
+    }
+
+    /**
+     * Create an empty usage entry for an app we haven't seen on a day.
+     * @param processName The process name of the app.
+     * @param date The day, in days since epoch.
+     * @return The new entry, or null if the app cannot be found.
+     */
+    private AppUsageEntry createAppUsageEntry(String processName, long date) {
+        PackageMetadataCache.PackageMetadata metadata = mSource.getMetadata(processName);
+        if (metadata == null)
+            return null;
+        AppUsageEntry entry = new AppUsageEntry(processName, metadata.Label, 0, date);
+        entry.VersionCode = metadata.VersionCode;
+        return entry;
+    }
+}
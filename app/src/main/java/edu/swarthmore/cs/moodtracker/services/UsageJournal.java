@@ -0,0 +1,303 @@
+package edu.swarthmore.cs.moodtracker.services;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only journal of foreground sessions, kept between two database saves.
+ * TrackService only saves usage to the database every minute or so, and a process kill would
+ * lose everything since the last save. The journal is a memory-mapped file of fixed-size binary
+ * records, so writes go straight to the page cache and survive the process being killed.
+ *
+ * Layout: a header (magic, version, number of closed records) followed by RECORD_CAPACITY
+ * records. Closed sessions are appended in order. The session that is still open always lives in
+ * the slot right after the last closed record, and its end time is overwritten in place on every
+ * sample, which needs no allocation. After a successful database save, checkpoint() marks the
+ * records that were saved, and drops the saved records at the front of the journal. The records
+ * of a save that failed stay until a later save writes them, even if saves of newer records
+ * succeed first.
+ */
+public class UsageJournal {
+    public static final String TAG = "UsageJournal";
+
+    private static final int MAGIC = 0x4d544a31; // "MTJ1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int OFFSET_COUNT = 8;
+
+    public static final int RECORD_SIZE = 128;
+    public static final int RECORD_CAPACITY = 512;
+    public static final int MAX_NAME_LENGTH = RECORD_SIZE - 28;
+
+    // Record layout, relative to the start of the record.
+    private static final int REC_FLAGS = 0;
+    private static final int REC_NAME_LENGTH = 1;
+    private static final int REC_START = 4;
+    private static final int REC_END = 12;
+    private static final int REC_FLUSHED = 20;
+    private static final int REC_NAME = 28;
+
+    private static final byte FLAG_EMPTY = 0;
+    private static final byte FLAG_CLOSED = 1;
+    private static final byte FLAG_OPEN = 2;
+
+    /**
+     * A session read back from the journal.
+     */
+    public static class Record {
+        public final String PackageName;
+        public final long StartMs;
+        public final long EndMs;
+        // Up to when this session has already been saved to the database. Equal to EndMs once
+        // the whole session is saved.
+        public final long FlushedMs;
+        // Mark of this record, see getMark().
+        public final long Mark;
+
+        public Record(String packageName, long startMs, long endMs, long flushedMs, long mark) {
+            PackageName = packageName;
+            StartMs = startMs;
+            EndMs = endMs;
+            FlushedMs = flushedMs;
+            Mark = mark;
+        }
+
+        /**
+         * Get the part of this session that is not in the database yet.
+         * @return The unsaved duration in milliseconds.
+         */
+        public long getUnflushedMs() {
+            return Math.max(0, EndMs - Math.max(StartMs, FlushedMs));
+        }
+    }
+
+    private final MappedByteBuffer mBuffer;
+    // Number of closed records. The open record, if any, lives in slot mCount.
+    private int mCount;
+    private boolean mHasOpenRecord = false;
+    // Number of records dropped by checkpoint() since the journal was opened. Makes marks
+    // absolute, so overlapping saves can't drop each other's records.
+    private long mDroppedCount = 0;
+
+    /**
+     * Open (or create) a journal file and map it into memory.
+     * @param file The journal file.
+     * @throws IOException If the file cannot be created or mapped.
+     */
+    public UsageJournal(File file) throws IOException {
+        long size = HEADER_SIZE + (long) RECORD_SIZE * RECORD_CAPACITY;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+            Log.d(TAG, "Initializing new journal");
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            setCount(0);
+            mBuffer.put(recordOffset(0) + REC_FLAGS, FLAG_EMPTY);
+        }
+
+        mCount = Math.min(Math.max(mBuffer.getInt(OFFSET_COUNT), 0), RECORD_CAPACITY);
+    }
+
+    /**
+     * Read back all sessions in the journal. A session that was still open when the previous
+     * process died is closed at the last end time it recorded.
+     * @return The sessions in the order they were written.
+     */
+    public List<Record> replay() {
+        if (mCount < RECORD_CAPACITY && mBuffer.get(recordOffset(mCount) + REC_FLAGS) == FLAG_OPEN) {
+            mHasOpenRecord = true;
+            closeOpenSession(mBuffer.getLong(recordOffset(mCount) + REC_END));
+        }
+
+        ArrayList<Record> records = new ArrayList<Record>(mCount);
+        for (int i = 0; i < mCount; i++) {
+            int offset = recordOffset(i);
+            int nameLength = mBuffer.get(offset + REC_NAME_LENGTH) & 0xff;
+            if (nameLength == 0 || nameLength > MAX_NAME_LENGTH)
+                continue;
+
+            byte[] name = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = mBuffer.get(offset + REC_NAME + j);
+            }
+
+            String packageName;
+            try {
+                packageName = new String(name, "UTF-8");
+            }
+            catch (IOException e) {
+                continue;
+            }
+            records.add(new Record(packageName, mBuffer.getLong(offset + REC_START),
+                    mBuffer.getLong(offset + REC_END), mBuffer.getLong(offset + REC_FLUSHED), mDroppedCount + i));
+        }
+        return records;
+    }
+
+    /**
+     * Record that a session opened. Replaces any open session that was not closed.
+     * @param encodedName UTF-8 bytes of the package name. See encodeName().
+     * @param startMs Start of the session.
+     * @return False if the journal is full or the name is too long, and the session is not recorded.
+     */
+    public boolean openSession(byte[] encodedName, long startMs) {
+        mHasOpenRecord = false;
+        if (mCount >= RECORD_CAPACITY || encodedName == null || encodedName.length == 0
+                || encodedName.length > MAX_NAME_LENGTH)
+            return false;
+
+        int offset = recordOffset(mCount);
+        mBuffer.put(offset + REC_NAME_LENGTH, (byte) encodedName.length);
+        mBuffer.putLong(offset + REC_START, startMs);
+        mBuffer.putLong(offset + REC_END, startMs);
+        mBuffer.putLong(offset + REC_FLUSHED, startMs);
+        for (int i = 0; i < encodedName.length; i++) {
+            mBuffer.put(offset + REC_NAME + i, encodedName[i]);
+        }
+        // Flag goes last, so a half written record is never replayed.
+        mBuffer.put(offset + REC_FLAGS, FLAG_OPEN);
+        mHasOpenRecord = true;
+        return true;
+    }
+
+    /**
+     * Move the end of the open session forward. Called on every sample; does not allocate.
+     * @param endMs The new end time of the open session.
+     */
+    public void updateOpenSession(long endMs) {
+        if (mHasOpenRecord)
+            mBuffer.putLong(recordOffset(mCount) + REC_END, endMs);
+    }
+
+    /**
+     * Record that the open session closed.
+     * @param endMs End of the session.
+     */
+    public void closeOpenSession(long endMs) {
+        if (!mHasOpenRecord)
+            return;
+
+        int offset = recordOffset(mCount);
+        mBuffer.putLong(offset + REC_END, endMs);
+        mBuffer.put(offset + REC_FLAGS, FLAG_CLOSED);
+        mHasOpenRecord = false;
+        setCount(mCount + 1);
+
+        if (mCount < RECORD_CAPACITY)
+            mBuffer.put(recordOffset(mCount) + REC_FLAGS, FLAG_EMPTY);
+    }
+
+    /**
+     * Get a mark of everything written so far. A save passes the marks of the first record it
+     * writes and of everything it writes to checkpoint(). The open session, if any, is the record
+     * right at the mark.
+     * @return The number of closed records written since the journal was opened.
+     */
+    public long getMark() {
+        return mDroppedCount + mCount;
+    }
+
+    /**
+     * Check whether the journal has room for more sessions.
+     * @return True if no new session can be recorded until the next checkpoint.
+     */
+    public boolean isFull() {
+        return mCount >= RECORD_CAPACITY - 1;
+    }
+
+    /**
+     * Record that a save wrote the closed records from startMark up to endMark to the database,
+     * then drop the saved records at the front of the journal. Records after the first one that
+     * is not saved are kept, and moved to the front.
+     * @param startMark The mark of the first record the save wrote. See getMark().
+     * @param endMark The value of getMark() when the save started.
+     * @param flushedMs Up to when the session open during the save was saved, or Long.MIN_VALUE
+     *                  if no session was open.
+     */
+    public void checkpoint(long startMark, long endMark, long flushedMs) {
+        int first = (int) Math.max(0, Math.min(startMark - mDroppedCount, mCount));
+        int last = (int) Math.max(0, Math.min(endMark - mDroppedCount, mCount));
+        for (int i = first; i < last; i++) {
+            int offset = recordOffset(i);
+            mBuffer.putLong(offset + REC_FLUSHED, mBuffer.getLong(offset + REC_END));
+        }
+
+        // The session that was open during the save is the record at endMark. It may have
+        // closed since.
+        long openIndex = endMark - mDroppedCount;
+        if (openIndex >= 0 && (openIndex < mCount || (openIndex == mCount && mHasOpenRecord))) {
+            int offset = recordOffset((int) openIndex);
+            if (flushedMs > mBuffer.getLong(offset + REC_FLUSHED))
+                mBuffer.putLong(offset + REC_FLUSHED, flushedMs);
+        }
+
+        int drop = 0;
+        while (drop < mCount && isSaved(drop)) {
+            drop++;
+        }
+        if (drop == 0)
+            return;
+
+        int remaining = mCount - drop + (mHasOpenRecord ? 1 : 0);
+        for (int i = 0; i < remaining; i++) {
+            int from = recordOffset(drop + i);
+            int to = recordOffset(i);
+            for (int j = 0; j < RECORD_SIZE; j++) {
+                mBuffer.put(to + j, mBuffer.get(from + j));
+            }
+        }
+        mDroppedCount += drop;
+        setCount(mCount - drop);
+        if (!mHasOpenRecord && mCount < RECORD_CAPACITY)
+            mBuffer.put(recordOffset(mCount) + REC_FLAGS, FLAG_EMPTY);
+    }
+
+    /**
+     * Encode a package name for openSession(). Call once per session, not on every sample.
+     * @param packageName The package name.
+     * @return The UTF-8 bytes, or null if the name cannot be encoded.
+     */
+    public static byte[] encodeName(String packageName) {
+        try {
+            return packageName.getBytes("UTF-8");
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check whether a closed record is saved to the database as a whole.
+     * @param index The slot of the record.
+     * @return True if the record can be dropped.
+     */
+    private boolean isSaved(int index) {
+        int offset = recordOffset(index);
+        return mBuffer.getLong(offset + REC_FLUSHED) >= mBuffer.getLong(offset + REC_END);
+    }
+
+    private void setCount(int count) {
+        mCount = count;
+        mBuffer.putInt(OFFSET_COUNT, count);
+    }
+
+    private static int recordOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,170 @@
+package edu.swarthmore.cs.moodtracker.util;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Collection;
+
+import edu.swarthmore.cs.moodtracker.db.AppIconStore;
+import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
+
+/**
+ * Process-wide cache of decoded app icons, keyed by package name.
+ * AppUsageEntries only carry the package name (and the hash of the stored icon), so the number
+ * of decoded icons in memory is capped by the budget of this cache, not by the number of apps
+ * the user has. Icons are downscaled to list item size before they are cached.
+ * Misses are loaded from the AppIconStore if the hash is known, otherwise from PackageManager.
+ * Safe to use from any thread, but loading should be done off the main thread where possible.
+ * See warm().
+ */
+public class AppIconCache {
+    public static final String TAG = "AppIconCache";
+    // Share of the heap the cache may use.
+    private static final int HEAP_FRACTION = 16;
+
+    // Private factory instance.
+    private static AppIconCache sInstance = null;
+
+    private final PackageManager mPackageManager;
+    private final AppIconStore mIconStore;
+    private final LruCache<String, Bitmap> mCache;
+
+    /**
+     * Static factory method to create the AppIconCache instance or retrieve the existing instance.
+     * @param context Any context of the app.
+     * @return The AppIconCache instance.
+     */
+    public static synchronized AppIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Private constructor, used by static getInstance() method.
+     * @param context The application context.
+     */
+    private AppIconCache(Context context) {
+        mPackageManager = context.getPackageManager();
+        mIconStore = new AppIconStore(context);
+
+        // The size of the cache is counted in kilobytes.
+        int maxKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / HEAP_FRACTION);
+        mCache = new LruCache<String, Bitmap>(maxKb) {
+            @Override
+            protected int sizeOf(String packageName, Bitmap icon) {
+                return Math.max(1, icon.getRowBytes() * icon.getHeight() / 1024);
+            }
+        };
+    }
+
+    /**
+     * Get an icon if it is in memory. Never loads anything, so it is cheap on the main thread.
+     * @param packageName The package of the app.
+     * @return The icon, or null if it is not cached.
+     */
+    public Bitmap getCached(String packageName) {
+        return mCache.get(packageName);
+    }
+
+    /**
+     * Get an icon, loading it on a miss.
+     * @param packageName The package of the app.
+     * @param iconHash Hash of the icon in the AppIconStore, or null if not known.
+     * @return The icon, or null if it cannot be found.
+     */
+    public Bitmap get(String packageName, String iconHash) {
+        Bitmap icon = mCache.get(packageName);
+        if (icon != null)
+            return icon;
+
+        icon = mIconStore.get(iconHash);
+        if (icon == null)
+            return loadFromPackageManager(packageName);
+
+        mCache.put(packageName, icon);
+        return icon;
+    }
+
+    /**
+     * Load the current icon of an app from PackageManager, replacing any cached one.
+     * Used for apps that are new or were updated.
+     * @param packageName The package of the app.
+     * @return The downscaled icon, or null if the app is not installed.
+     */
+    public Bitmap loadFromPackageManager(String packageName) {
+        Drawable drawable;
+        try {
+            drawable = mPackageManager.getApplicationIcon(packageName);
+        }
+        catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+
+        Bitmap icon = drawableToBitmap(drawable);
+        if (icon == null)
+            return null;
+
+        icon = mIconStore.downscale(icon);
+        mCache.put(packageName, icon);
+        return icon;
+    }
+
+    /**
+     * Load the icons of some entries into memory, e.g. on a background thread before showing them.
+     * @param entries The entries whose icons to load.
+     */
+    public void warm(Collection<AppUsageEntry> entries) {
+        for (AppUsageEntry entry : entries) {
+            get(entry.PackageName, entry.IconHash);
+        }
+    }
+
+    /**
+     * Drop the cached icon of an app. Called when the app is replaced or removed.
+     * @param packageName The package of the app.
+     */
+    public void invalidate(String packageName) {
+        mCache.remove(packageName);
+    }
+
+    @Override
+    public String toString() {
+        return "App icons: " + mCache.size() + " of " + mCache.maxSize() + " KB, "
+                + mCache.hitCount() + " hits, " + mCache.missCount() + " misses, "
+                + mCache.evictionCount() + " evictions";
+    }
+
+    /**
+     * Get a Bitmap out of an app icon. Most icons are BitmapDrawables, others are drawn
+     * into a new Bitmap.
+     * @param drawable The icon drawable.
+     * @return The icon Bitmap, or null if the drawable cannot be drawn.
+     */
+    private static Bitmap drawableToBitmap(Drawable drawable) {
+        if (drawable == null)
+            return null;
+        if (drawable instanceof BitmapDrawable)
+            return ((BitmapDrawable) drawable).getBitmap();
+
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            Log.e(TAG, "drawableToBitmap(): icon has no intrinsic size");
+            return null;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+}
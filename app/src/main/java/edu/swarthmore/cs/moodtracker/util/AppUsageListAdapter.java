@@ -1,7 +1,8 @@
 package edu.swarthmore.cs.moodtracker.util;
 
 import android.content.Context;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,6 +11,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 
 import edu.swarthmore.cs.moodtracker.R;
@@ -21,12 +23,19 @@ import edu.swarthmore.cs.moodtracker.db.AppUsageEntry;
  */
 public class AppUsageListAdapter extends ArrayAdapter<AppUsageEntry> {;
 
-    // Context used to create BitmapDrawable from Bitmap.
-    private Context mContext = null;
+    // Shown in place of an icon that is not in memory yet.
+    private static final int PLACEHOLDER_ICON = android.R.drawable.sym_def_app_icon;
+    // Tag of an icon view that shows the placeholder.
+    private static final Object PLACEHOLDER_TAG = new Object();
+
+    // Shared cache the icons are taken from. ReadAppUsageTask loads them in the background.
+    private AppIconCache mIconCache = null;
+    // Packages whose icon is being loaded, or could not be found. Only used on the main thread.
+    private final HashSet<String> mRequestedIcons = new HashSet<String>();
 
     public AppUsageListAdapter(Context context, int resource, List<AppUsageEntry> entries) {
         super(context, resource, entries);
-        mContext = context;
+        mIconCache = AppIconCache.getInstance(context);
     }
 
     @Override
@@ -48,11 +57,53 @@ public class AppUsageListAdapter extends ArrayAdapter<AppUsageEntry> {;
 
             appNameText.setText(entry.AppName);
             timeText.setText(secToHourMinuteSecond(entry.UsageTimeSec));
-            iconImage.setImageDrawable(new BitmapDrawable(mContext.getResources(), entry.AppIcon));
+
+            // Only take icons that are in memory, loading one here would block scrolling.
+            // ReadAppUsageTask loads the icons of the list, but the cache may have dropped some
+            // since, so those are loaded in the background and the row shows a placeholder.
+            Bitmap icon = mIconCache.getCached(entry.PackageName);
+            if (icon == null)
+                loadIcon(entry);
+
+            // The list is rebound every time usage times change. Only replace the icon if the
+            // row now shows a different app, or the icon was reloaded.
+            Object tag = (icon != null) ? icon : PLACEHOLDER_TAG;
+            if (iconImage.getTag() != tag) {
+                if (icon != null)
+                    iconImage.setImageBitmap(icon);
+                else
+                    iconImage.setImageResource(PLACEHOLDER_ICON);
+                iconImage.setTag(tag);
+            }
         }
         return v;
     }
 
+    /**
+     * Load the icon of an entry into the cache in the background, then rebind the rows.
+     * Each icon is only requested once while loading, and never again if it cannot be found.
+     * @param entry The entry whose icon is not in memory.
+     */
+    private void loadIcon(final AppUsageEntry entry) {
+        if (!mRequestedIcons.add(entry.PackageName))
+            return;
+
+        new AsyncTask<Void, Void, Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(Void... params) {
+                return mIconCache.get(entry.PackageName, entry.IconHash);
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap icon) {
+                if (icon == null)
+                    return;
+                mRequestedIcons.remove(entry.PackageName);
+                notifyDataSetChanged();
+            }
+        }.execute();
+    }
+
     private String secToHourMinuteSecond(int numSeconds) {
         int seconds = (numSeconds % 60);
         int minutes = ((numSeconds / 60) % 60);
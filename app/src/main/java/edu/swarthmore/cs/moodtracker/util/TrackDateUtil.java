@@ -1,5 +1,6 @@
 package edu.swarthmore.cs.moodtracker.util;
 
+import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
 
@@ -8,6 +9,9 @@ import java.util.TimeZone;
  */
 public class TrackDateUtil {
     private static TimeZone mMyTimeZone = TimeZone.getDefault();
+    // Days since epoch count local days, so calendar math on them is done in UTC.
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long DAY_MS = 24*3600*1000L;
     /**
      * Get the number of days passed since Epoch (1970/1/1). This is the date formate stored in database.
      * @return a long representing the number of days since epoch.
@@ -23,4 +27,84 @@ public class TrackDateUtil {
         long millis = date.getTime() + offset;
         return millis / (24*3600*1000);
     }
+
+    /**
+     * Get the number of days passed since Epoch for a point in time, using the time zone offset
+     * at that time rather than the current one.
+     * @param millis Wall clock time in milliseconds since epoch.
+     * @return a long representing the number of days since epoch.
+     */
+    public static long getDaysSinceEpoch(long millis) {
+        return (millis + mMyTimeZone.getOffset(millis)) / (24*3600*1000);
+    }
+
+    /**
+     * Get the local midnight that starts the day of a point in time.
+     * @param millis Wall clock time in milliseconds since epoch.
+     * @return The wall clock time of the midnight, in milliseconds since epoch.
+     */
+    public static long getStartOfDayMillis(long millis) {
+        Calendar calendar = Calendar.getInstance(mMyTimeZone);
+        calendar.setTimeInMillis(millis);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Get the next local midnight after a point in time. Days are not always 24 hours long,
+     * because of daylight saving time.
+     * @param millis Wall clock time in milliseconds since epoch.
+     * @return The wall clock time of the next midnight, in milliseconds since epoch.
+     */
+    public static long getNextMidnightMillis(long millis) {
+        Calendar calendar = Calendar.getInstance(mMyTimeZone);
+        calendar.setTimeInMillis(getStartOfDayMillis(millis));
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Get the Monday that starts the ISO week of a day. 1970/1/1 was a Thursday.
+     * @param daysSinceEpoch The day, in days since epoch.
+     * @return The Monday, in days since epoch.
+     */
+    public static long getWeekStart(long daysSinceEpoch) {
+        long daysSinceMonday = ((daysSinceEpoch + 3) % 7 + 7) % 7;
+        return daysSinceEpoch - daysSinceMonday;
+    }
+
+    /**
+     * Get the first day of the month of a day.
+     * @param daysSinceEpoch The day, in days since epoch.
+     * @return The first day of the month, in days since epoch.
+     */
+    public static long getMonthStart(long daysSinceEpoch) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTimeInMillis(daysSinceEpoch * DAY_MS);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis() / DAY_MS;
+    }
+
+    /**
+     * Get the first day of the month after the month of a day.
+     * @param daysSinceEpoch The day, in days since epoch.
+     * @return The first day of the next month, in days since epoch.
+     */
+    public static long getNextMonthStart(long daysSinceEpoch) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTimeInMillis(getMonthStart(daysSinceEpoch) * DAY_MS);
+        calendar.add(Calendar.MONTH, 1);
+        return calendar.getTimeInMillis() / DAY_MS;
+    }
+
+    /**
+     * Reload the default time zone. Call when the system time zone changes.
+     */
+    public static void refreshTimeZone() {
+        TimeZone.setDefault(null);
+        mMyTimeZone = TimeZone.getDefault();
+    }
 }